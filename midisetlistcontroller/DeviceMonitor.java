@@ -0,0 +1,66 @@
+package midisetlistcontroller;
+
+import java.lang.reflect.InvocationTargetException;
+import javax.swing.SwingUtilities;
+
+/**
+ * Checks in the background whether the midi devices are still there, while
+ * the midi check is on. When one is gone, for instance after a USB hiccup, the
+ * device is found and opened again, retrying less and less often, and the
+ * current setlist item is applied again to it since the device may have lost
+ * its state. Sending itself never checks for the devices.
+ *
+ * @author ejlchappin
+ */
+public class DeviceMonitor extends Thread {
+
+    MidiSetlistController midicontroller = null;
+    //Time between checks while the device is there, in ms
+    static final long checkInterval = 2000;
+    //Longest time between attempts to reconnect, in ms
+    static final long maxBackoff = 30000;
+
+    public DeviceMonitor(MidiSetlistController m) {
+        super("Midi device monitor");
+        this.midicontroller = m;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        boolean available = true;
+        long backoff = checkInterval;
+        try {
+            while (!isInterrupted()) {
+                Thread.sleep(available ? checkInterval : backoff);
+                if (!midicontroller.checkMidiDeviceAvailable || midicontroller.isMidiDeviceAvailable()) {
+                    available = true;
+                    backoff = checkInterval;
+                    continue;
+                }
+                if (available) {
+                    midicontroller.writeLine("Midi device seems unavailable, will try to reconnect. Use CTRL-U to suppress.");
+                    available = false;
+                }
+
+                final boolean[] reconnected = new boolean[1];
+                SwingUtilities.invokeAndWait(new Runnable() {
+                    @Override
+                    public void run() {
+                        reconnected[0] = midicontroller.reconnectMidiDevice();
+                    }
+                });
+                if (reconnected[0]) {
+                    available = true;
+                    backoff = checkInterval;
+                } else {
+                    backoff = Math.min(backoff * 2, maxBackoff);
+                }
+            }
+        } catch (InterruptedException e) {
+            //Stopped
+        } catch (InvocationTargetException e) {
+            midicontroller.writeLine("Midi device monitor stopped: " + e.getCause());
+        }
+    }
+}
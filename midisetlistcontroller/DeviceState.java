@@ -0,0 +1,157 @@
+package midisetlistcontroller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * The state of the midi device after a setlist item, derived from the setlist
+ * rather than from the device: the preset and, for every part of the state
+ * that was changed since (a controller or program of a channel, a part that is
+ * switched on or off, a key range), the last operation that set it. Jumping to
+ * an item then only sends what differs instead of replaying every item on the
+ * way.
+ *
+ * @author ejlchappin
+ */
+public class DeviceState {
+
+    //The operation that selected the preset, if it resolved
+    private MidiOperation preset = null;
+    //Last operation for each part of the state, in the order they were last set
+    private final LinkedHashMap<String, MidiOperation> values = new LinkedHashMap<>();
+    //Operations that bring parts back to the value of the preset, taken from the reverse plans
+    private final HashMap<String, MidiOperation> presetValues = new HashMap<>();
+
+    //Gives the state after item index, from the start of its preset
+    public static DeviceState of(Setlist setlist, int index) {
+        DeviceState state = new DeviceState();
+        for (int i = Math.max(setlist.presetAtOrBefore(index), 0); i <= index; i++) {
+            state.apply(setlist.get(i));
+        }
+        return state;
+    }
+
+    //Applies an item going down
+    public void apply(SetlistItem item) {
+        MidiOperation[] forward = item.getForwardPlan();
+        int first = 0;
+        if (!item.getPreset().equals("")) {
+            preset = null;
+            values.clear();
+            presetValues.clear();
+            if (forward.length > 0 && forward[0].code.equals(item.getPreset())) {
+                preset = forward[0];
+                first = 1;
+            }
+        }
+
+        //Going up undoes the item, so for parts it sets first the reverse plan has the value of the preset
+        for (MidiOperation operation : item.getReversePlan()) {
+            String key = operation.stateKey;
+            if (key != null && !values.containsKey(key) && !presetValues.containsKey(key)) {
+                presetValues.put(key, operation.finalMessage());
+            }
+        }
+        for (int i = first; i < forward.length; i++) {
+            set(forward[i]);
+        }
+    }
+
+    private void set(MidiOperation operation) {
+        if (operation.stateKey != null) {
+            values.remove(operation.stateKey);
+            values.put(operation.stateKey, operation.finalMessage());
+        }
+    }
+
+    //Gives the operations that set up this state on the device from scratch: the preset and all changes after it
+    public MidiOperation[] operations() {
+        ArrayList<MidiOperation> operations = new ArrayList<>();
+        if (preset != null) {
+            operations.add(preset);
+        }
+        operations.addAll(values.values());
+        return operations.toArray(new MidiOperation[operations.size()]);
+    }
+
+    //Gives the operations that bring the device from this state to the target state within the same preset.
+    //Parts that the target leaves at the value of the preset are set back first.
+    public MidiOperation[] diff(DeviceState target) {
+        ArrayList<MidiOperation> operations = new ArrayList<>();
+        for (Map.Entry<String, MidiOperation> entry : values.entrySet()) {
+            if (!target.values.containsKey(entry.getKey())) {
+                MidiOperation presetValue = target.presetValues.get(entry.getKey());
+                if (presetValue == null) {
+                    presetValue = presetValues.get(entry.getKey());
+                }
+                if (presetValue != null && !sameValue(entry.getValue(), presetValue)) {
+                    operations.add(presetValue);
+                }
+            }
+        }
+        for (Map.Entry<String, MidiOperation> entry : target.values.entrySet()) {
+            MidiOperation current = values.get(entry.getKey());
+            if (current == null) {
+                current = presetValues.get(entry.getKey());
+            }
+            if (current == null) {
+                current = target.presetValues.get(entry.getKey());
+            }
+            if (current == null || !sameValue(current, entry.getValue())) {
+                operations.add(entry.getValue());
+            }
+        }
+        return operations.toArray(new MidiOperation[operations.size()]);
+    }
+
+    //Drops the operations of a plan that a later operation in the same plan overrides: a controller that is set
+    //twice, a program change replaced by another or a code followed by its opposite. The last value is sent at the
+    //place of the first, so nothing moves before an operation it came after. Other codes, such as a part select
+    //and the codes that depend on it, are kept as they are. Waits, samples and ramps keep their place, only the
+    //operations between them are merged.
+    public static MidiOperation[] coalesce(MidiOperation[] plan) {
+        ArrayList<MidiOperation> operations = new ArrayList<>(plan.length);
+        HashMap<String, Integer> positions = new HashMap<>();
+        for (MidiOperation operation : plan) {
+            if (operation.stateKey == null || operation.type == MidiOperation.Ramp) {
+                positions.clear();
+                operations.add(operation);
+            } else if (!overrides(operation)) {
+                operations.add(operation);
+            } else if (positions.containsKey(operation.stateKey)) {
+                operations.set(positions.get(operation.stateKey), operation);
+            } else {
+                positions.put(operation.stateKey, operations.size());
+                operations.add(operation);
+            }
+        }
+        if (operations.size() == plan.length) {
+            return plan;
+        }
+        return operations.toArray(new MidiOperation[operations.size()]);
+    }
+
+    //Whether a later operation with the same state key replaces this one: control and program changes, and codes
+    //that have an opposite
+    private static boolean overrides(MidiOperation operation) {
+        if (operation.stateKey.contains("|")) {
+            return true;
+        }
+        if (operation.message instanceof ShortMessage) {
+            int command = ((ShortMessage) operation.message).getCommand();
+            return command == ShortMessage.CONTROL_CHANGE || command == ShortMessage.PROGRAM_CHANGE;
+        }
+        return false;
+    }
+
+    private static boolean sameValue(MidiOperation a, MidiOperation b) {
+        if (a.message == null || b.message == null) {
+            return a.code.equals(b.code);
+        }
+        return Arrays.equals(a.message.getMessage(), b.message.getMessage());
+    }
+}
@@ -0,0 +1,173 @@
+package midisetlistcontroller;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * The lines of the main display, at most a configured number of them, kept in
+ * a ring. When the ring is full the oldest lines are dropped from the display
+ * in batches and appended to the log file, so the display stays the same size
+ * and appending to it stays as fast however long the application runs. The
+ * dropped lines are written by a background thread, so the event dispatch
+ * thread doesn't wait for the file. Saving the log appends the lines that are
+ * not in it yet, so the log file holds every line once.
+ *
+ * @author ejlchappin
+ */
+public class DisplayBuffer {
+
+    static final int defaultCapacity = 2000;
+
+    private final String logFilename;
+    private String[] lines;
+    //Position of the oldest line in the ring and the number of lines
+    private int first = 0;
+    private int size = 0;
+    //Number of the oldest lines that are already in the log file
+    private int logged = 0;
+    //Text after the last line break
+    private final StringBuilder partial = new StringBuilder();
+    //Dropped lines that the log writer still has to append to the log file
+    private final StringBuilder spilled = new StringBuilder();
+    //Held while writing the log file, so the lines go in in order
+    private final Object logFile = new Object();
+    private Thread logWriter = null;
+
+    public DisplayBuffer(int capacity, String logFilename) {
+        this.lines = new String[capacity];
+        this.logFilename = logFilename;
+    }
+
+    public synchronized int getCapacity() {
+        return lines.length;
+    }
+
+    //Adds text, which may contain line breaks. Gives the number of characters that were dropped from the start.
+    public synchronized int append(String text) {
+        int dropped = 0;
+        int start = 0;
+        int end;
+        while ((end = text.indexOf('\n', start)) >= 0) {
+            partial.append(text, start, end + 1);
+            if (size == lines.length) {
+                //Drop a tenth at once, so the display isn't changed at the start for every line
+                dropped += drop(Math.max(lines.length / 10, 1));
+            }
+            lines[(first + size) % lines.length] = partial.toString();
+            size++;
+            partial.setLength(0);
+            start = end + 1;
+        }
+        partial.append(text, start, text.length());
+        return dropped;
+    }
+
+    //Keeps at most capacity lines, the newest. Gives the number of characters that were dropped from the start.
+    public synchronized int setCapacity(int capacity) {
+        int dropped = size > capacity ? drop(size - capacity) : 0;
+        String[] resized = new String[capacity];
+        for (int i = 0; i < size; i++) {
+            resized[i] = lines[(first + i) % lines.length];
+        }
+        lines = resized;
+        first = 0;
+        return dropped;
+    }
+
+    //Forgets all lines, without writing them to the log file
+    public synchronized void clear() {
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = null;
+        }
+        first = 0;
+        size = 0;
+        logged = 0;
+        partial.setLength(0);
+    }
+
+    //Appends the lines that are not in the log file yet to it, after the dropped lines that are still being written
+    public synchronized void writeLog() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = logged; i < size; i++) {
+            text.append(lines[(first + i) % lines.length]);
+        }
+        synchronized (logFile) {
+            writeFile(takeSpilled() + text);
+        }
+        logged = size;
+    }
+
+    //Drops the oldest lines, and has the ones that are not in the log file yet written to it. Gives their number of characters.
+    private int drop(int count) {
+        StringBuilder text = new StringBuilder();
+        int characters = 0;
+        for (int i = 0; i < count; i++) {
+            int position = (first + i) % lines.length;
+            if (i >= logged) {
+                text.append(lines[position]);
+            }
+            characters += lines[position].length();
+            lines[position] = null;
+        }
+        if (text.length() > 0) {
+            spill(text.toString());
+        }
+        first = (first + count) % lines.length;
+        size -= count;
+        logged = Math.max(logged - count, 0);
+        return characters;
+    }
+
+    //Hands dropped lines to the log writer, which is started when lines are dropped for the first time
+    private void spill(String text) {
+        synchronized (spilled) {
+            spilled.append(text);
+            spilled.notify();
+        }
+        if (logWriter == null) {
+            logWriter = new Thread("Log writer") {
+                @Override
+                public void run() {
+                    try {
+                        while (!isInterrupted()) {
+                            synchronized (spilled) {
+                                while (spilled.length() == 0) {
+                                    spilled.wait();
+                                }
+                            }
+                            synchronized (logFile) {
+                                try {
+                                    writeFile(takeSpilled());
+                                } catch (IOException e) {
+                                    //The display goes on without the log file
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        //Stopped
+                    }
+                }
+            };
+            logWriter.setDaemon(true);
+            logWriter.start();
+        }
+    }
+
+    private String takeSpilled() {
+        synchronized (spilled) {
+            String text = spilled.toString();
+            spilled.setLength(0);
+            return text;
+        }
+    }
+
+    private void writeFile(String text) throws IOException {
+        if (text.isEmpty()) {
+            return;
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFilename, true))) {
+            writer.write(text);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package midisetlistcontroller;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.Timer;
+
+/**
+ * Collects the changes to the display from all threads (the midi receivers,
+ * the midi output, the listener and the user interface) and shows them on the
+ * event dispatch thread, at most once per frame. Lines written in between are
+ * appended at once, and the current item at the bottom of the screen is only
+ * shown again when the frame is drawn, so a flood of incoming midi costs one
+ * update per frame instead of one per line, and Swing is only touched from the
+ * event dispatch thread.
+ *
+ * @author ejlchappin
+ */
+public class DisplayPublisher implements ActionListener {
+
+    //Time between updates of the display, in ms
+    static final int frameTime = 16;
+
+    MidiSetlistController midicontroller = null;
+    private final Timer timer;
+
+    //Changes since the last frame
+    private final StringBuilder text = new StringBuilder();
+    private boolean showItem = false;
+    private String current = null;
+    private Boolean error = null;
+    private boolean scheduled = false;
+
+    public DisplayPublisher(MidiSetlistController m) {
+        this.midicontroller = m;
+        this.timer = new Timer(frameTime, this);
+        timer.setRepeats(false);
+    }
+
+    //Appends text to the display, and shows the current item again if asked
+    public synchronized void write(String line, boolean item) {
+        text.append(line);
+        if (item) {
+            showItem = true;
+            current = null;
+        }
+        schedule();
+    }
+
+    //Shows a text instead of the current item, until the next line that shows the item
+    public synchronized void showCurrent(String line) {
+        current = line;
+        showItem = false;
+        schedule();
+    }
+
+    //Shows the current item in red, or in the normal colors again
+    public synchronized void showError(boolean isError) {
+        error = isError;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            timer.start();
+        }
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        flush();
+    }
+
+    //Shows the changes since the last frame right away. Only called on the event dispatch thread.
+    public void flush() {
+        String lines;
+        boolean item;
+        String currentText;
+        Boolean isError;
+        synchronized (this) {
+            lines = text.toString();
+            text.setLength(0);
+            item = showItem;
+            currentText = current;
+            isError = error;
+            showItem = false;
+            current = null;
+            error = null;
+            scheduled = false;
+            timer.stop();
+        }
+
+        if (!lines.isEmpty()) {
+            midicontroller.showText(lines);
+        }
+        if (currentText != null) {
+            midicontroller.displayAreaCurrent.setText(currentText);
+        } else if (item) {
+            midicontroller.showCurrentItem();
+        }
+        if (isError != null) {
+            midicontroller.showErrorColor(isError);
+        }
+    }
+}
@@ -50,6 +50,8 @@ public class DumpReceiver
 
     //Added midicontroller
     MidiSetlistController midicontroller = null;
+    //Alias of the midi input this receiver listens to, "" if no inputs are configured
+    String input = "";
     public static long seByteCount = 0;
     public static long smByteCount = 0;
     public static long seCount = 0;
@@ -96,6 +98,11 @@ public class DumpReceiver
         this.midicontroller = controller;
     }
 
+    public DumpReceiver(PrintStream printStream, MidiSetlistController controller, String input) {
+        this(printStream, controller);
+        this.input = input;
+    }
+
     public DumpReceiver(PrintStream printStream,
             boolean bPrintTimeStampAsTicks) {
         m_printStream = printStream;
@@ -107,24 +114,41 @@ public class DumpReceiver
 
     @Override
     public void send(MidiMessage message, long lTimeStamp) {
-        String strMessage;
-        if (message instanceof ShortMessage) {
-            strMessage = decodeMessage((ShortMessage) message);
-        } else if (message instanceof SysexMessage) {
-            strMessage = decodeMessage((SysexMessage) message);
-        } else if (message instanceof MetaMessage) {
-            strMessage = decodeMessage((MetaMessage) message);
-        } else {
-            strMessage = "unknown message type";
-        }
 
-        //Only print message if enabled. Also print message to the midicontroller interface
+        //Execute the triggers for this message, without decoding it
+        matchMidiTriggers(message);
+
+        //Only decode and print message if enabled. Also print message to the midicontroller interface
         if (midicontroller.printMidiReceived) {
+            String strMessage;
+            if (message instanceof ShortMessage) {
+                strMessage = decodeMessage((ShortMessage) message);
+            } else if (message instanceof SysexMessage) {
+                strMessage = decodeMessage((SysexMessage) message);
+            } else if (message instanceof MetaMessage) {
+                strMessage = decodeMessage((MetaMessage) message);
+            } else {
+                strMessage = "unknown message type";
+            }
+            if (!input.equals("")) {
+                strMessage = input + ": " + strMessage;
+            }
             midicontroller.writeLine(strMessage);
             m_printStream.println(strMessage);
         }
     }
 
+    //Looks up the triggers for the message. Short messages (clock, active sensing, control changes) 
+    //are matched without allocating, sysex messages only get copied when sysex triggers are configured.
+    private void matchMidiTriggers(MidiMessage message) {
+        TriggerTable triggerTable = midicontroller.triggerTable;
+        if (message instanceof ShortMessage) {
+            executeMidiTriggers(triggerTable.match((ShortMessage) message));
+        } else if (message instanceof SysexMessage && message.getStatus() == SysexMessage.SYSTEM_EXCLUSIVE && triggerTable.hasSystemExclusives()) {
+            executeMidiTriggers(triggerTable.match(new SysexKey(message.getMessage())));
+        }
+    }
+
     public String decodeMessage(ShortMessage message) {
         String strMessage;
         switch (message.getCommand()) {
@@ -145,23 +169,12 @@ public class DumpReceiver
                 String midiCode = "CC-" + channel + "-" + message.getData1() + "-" + message.getData2();
                 strMessage = "control change: " + message.getData1() + " value: " + message.getData2() + ", midicode: " + midiCode;
 
-                //Check whether there is a trigger for this control change code
-                for (MidiTrigger trigger : midicontroller.triggerlist) {
-                    if (trigger.messageType == ShortMessage.CONTROL_CHANGE && trigger.channel == message.getChannel() + 1 && trigger.control == message.getData1() && trigger.value == message.getData2()) {
-                        midicontroller.executeMidiTrigger(trigger);
-                    }
-                }
                 break;
 
             case ShortMessage.PROGRAM_CHANGE:
                 channel = message.getChannel()+1;
                 midiCode = "PC-" + channel + "-" + message.getData1() + "-" + message.getData2();
                 strMessage = "program change " + message.getData1() + ", midicode: " + midiCode;
-                for (MidiTrigger trigger : midicontroller.triggerlist) {
-                    if (trigger.messageType == ShortMessage.PROGRAM_CHANGE && trigger.channel == message.getChannel() + 1 && trigger.control == message.getData1()) {
-                        midicontroller.executeMidiTrigger(trigger);
-                    }
-                }
                 break;
 
             case ShortMessage.CHANNEL_PRESSURE:
@@ -212,6 +225,17 @@ public class DumpReceiver
         return "[" + getHexString(message) + "] " + strMessage;
     }
 
+    private void executeMidiTriggers(MidiTrigger[] triggers) {
+        if (triggers != null) {
+            for (MidiTrigger trigger : triggers) {
+                //Triggers for another input are skipped
+                if (trigger.input.equals("") || trigger.input.equals(input)) {
+                    midicontroller.executeMidiTrigger(trigger);
+                }
+            }
+        }
+    }
+
     public String decodeMessage(SysexMessage message) {
         byte[] abData = message.getData();
         String strMessage = null;
@@ -219,23 +243,11 @@ public class DumpReceiver
             String sysexHexString = "F0" + getHexString(abData);
 
             //Check if this refers to a midicode
-            String midiCode = " ";
-            if (midicontroller.midiCodesMap.containsValue(sysexHexString)) {
-                midiCode = MidiSetlistController.getKeyByValue(midicontroller.midiCodesMap, sysexHexString);
+            String midiCode = midicontroller.midiCodesBySysex.get(new SysexKey(message.getMessage()));
+            if (midiCode == null) {
+                midiCode = " ";
             }
             strMessage = "Sysex message: " + sysexHexString + ", midicode: " + midiCode;
-            for (MidiTrigger trigger : midicontroller.triggerlist) {
-                if (!trigger.midiCode.isEmpty() && !midicontroller.midiCodesMap.containsKey(trigger.midiCode)) {
-                    midicontroller.writeLine("Trigger midicode not defined in midi config: " + trigger.midiCode);
-                } else {
-                    if (trigger.messageType == MidiTrigger.SystemExclusive && trigger.sysexHex.equals(sysexHexString)) {
-                        midicontroller.executeMidiTrigger(trigger);
-                    }
-                    if (trigger.messageType == MidiTrigger.MidiCode && midicontroller.midiCodesMap.get(trigger.midiCode).equals(sysexHexString)) {
-                        midicontroller.executeMidiTrigger(trigger);
-                    }
-                }
-            }
         } else if (message.getStatus() == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE) {
             strMessage = "Continued Sysex message F7" + getHexString(abData);
             seByteCount--; // do not count the F7
@@ -0,0 +1,88 @@
+package midisetlistcontroller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import javax.swing.SwingUtilities;
+
+/**
+ * Watches the setlist and midi config files and reloads them when they are
+ * saved. The setlist is reloaded incrementally, so the performer stays on the
+ * same song and position.
+ *
+ * @author ejlchappin
+ */
+public class FileWatcher extends Thread {
+
+    MidiSetlistController midicontroller = null;
+    //Editors write a file in several steps, wait for them to finish
+    static final long settleTime = 200;
+
+    public FileWatcher(MidiSetlistController m) {
+        super("Setlist watcher");
+        this.midicontroller = m;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        final Path setlistPath = new File(midicontroller.setlistFilename).getAbsoluteFile().toPath();
+        final Path configPath = new File(midicontroller.configFilename).getAbsoluteFile().toPath();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            HashSet<Path> directories = new HashSet<>();
+            directories.add(setlistPath.getParent());
+            directories.add(configPath.getParent());
+            for (Path directory : directories) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+            }
+
+            while (!isInterrupted()) {
+                WatchKey key = watchService.take();
+                Thread.sleep(settleTime);
+                boolean setlistChanged = false;
+                boolean configChanged = false;
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() instanceof Path) {
+                            Path changed = ((Path) key.watchable()).resolve((Path) event.context());
+                            setlistChanged |= changed.equals(setlistPath);
+                            configChanged |= changed.equals(configPath);
+                        }
+                    }
+                    key.reset();
+                    key = watchService.poll();
+                }
+                if (setlistChanged || configChanged) {
+                    reload(setlistChanged, configChanged);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //Stopped watching
+        } catch (IOException e) {
+            midicontroller.writeLine("Could not watch the setlist and config files");
+        }
+    }
+
+    private void reload(final boolean setlistChanged, final boolean configChanged) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (configChanged) {
+                    midicontroller.writeLine("Midi config changed, reloading");
+                    midicontroller.readMidiConfig();
+                    midicontroller.openMidiDevice();
+                }
+                if (setlistChanged) {
+                    midicontroller.reloadSetlist();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,133 @@
+package midisetlistcontroller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+
+/**
+ * The midi devices in the system, listed in the background. Asking Java Sound
+ * for the devices can take hundreds of milliseconds and hangs with some
+ * drivers, so the devices are listed on this thread every few seconds and
+ * kept, and selecting a device or showing the list uses what was found last.
+ * Listeners hear about devices that are plugged in or removed.
+ *
+ * @author ejlchappin
+ */
+public class MidiDeviceRegistry extends Thread {
+
+    //Time between listing the devices, in ms
+    static final long scanInterval = 3000;
+    //Longest time to wait for the first list of devices, in ms
+    static final long timeout = 3000;
+
+    public interface Listener {
+
+        void deviceAdded(MidiDevice.Info info);
+
+        void deviceRemoved(MidiDevice.Info info);
+    }
+
+    private volatile Map<MidiDevice.Info, MidiDevice> devices = Collections.emptyMap();
+    private final CountDownLatch firstScan = new CountDownLatch(1);
+    //Set when the first list of devices didn't come in time, after which nobody waits for it anymore
+    private volatile boolean timedOut = false;
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+    private final Object rescan = new Object();
+
+    public MidiDeviceRegistry() {
+        super("Midi device registry");
+        setDaemon(true);
+    }
+
+    public synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    //Gives the devices by their info. Only waits for the first list of devices once, after that it gives the devices
+    //that were found last, which may be none.
+    public Map<MidiDevice.Info, MidiDevice> getDevices() {
+        if (!timedOut && firstScan.getCount() > 0) {
+            try {
+                if (!firstScan.await(timeout, TimeUnit.MILLISECONDS)) {
+                    timedOut = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return devices;
+    }
+
+    //Whether the devices have been listed at least once
+    public boolean isScanned() {
+        return firstScan.getCount() == 0;
+    }
+
+    //Lists the devices again right away
+    public void rescan() {
+        synchronized (rescan) {
+            rescan.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                scan();
+                synchronized (rescan) {
+                    rescan.wait(scanInterval);
+                }
+            }
+        } catch (InterruptedException e) {
+            //Stopped
+        }
+    }
+
+    private void scan() {
+        Map<MidiDevice.Info, MidiDevice> previous = devices;
+        LinkedHashMap<MidiDevice.Info, MidiDevice> found = new LinkedHashMap<>();
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            MidiDevice device = previous.get(info);
+            if (device == null) {
+                try {
+                    device = MidiSystem.getMidiDevice(info);
+                } catch (MidiUnavailableException | RuntimeException e) {
+                    continue;
+                }
+            }
+            found.put(info, device);
+        }
+        devices = Collections.unmodifiableMap(found);
+
+        //The first list is not a change
+        if (firstScan.getCount() > 0) {
+            firstScan.countDown();
+            return;
+        }
+        ArrayList<Listener> current;
+        synchronized (this) {
+            current = new ArrayList<>(listeners);
+        }
+        for (MidiDevice.Info info : found.keySet()) {
+            if (!previous.containsKey(info)) {
+                for (Listener listener : current) {
+                    listener.deviceAdded(info);
+                }
+            }
+        }
+        for (MidiDevice.Info info : previous.keySet()) {
+            if (!found.containsKey(info)) {
+                for (Listener listener : current) {
+                    listener.deviceRemoved(info);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package midisetlistcontroller;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * A single precompiled step of a setlist item: a ready-to-send midi message, a
+ * control change ramp, a wait or a wave sample. Setlist items are compiled
+ * into arrays of these when the setlist is loaded, so navigating only replays
+ * them.
+ *
+ * @author ejlchappin
+ */
+public class MidiOperation {
+
+    public static final int Message = 0;
+    public static final int Ramp = 1;
+    public static final int Wait = 2;
+    public static final int Wav = 3;
+
+    final int type;
+    final String code;
+    final MidiMessage message;
+    final int channel;
+    final int control;
+    final int fromValue;
+    final int toValue;
+    final int duration;
+    final String fileName;
+    //Shape of a ramp, see RampEngine
+    final int curve;
+    //The part of the device state this operation sets, null for waits and samples
+    final String stateKey;
+    //Alias of the midi device the operation is sent to, "" for the main device
+    final String output;
+
+    private MidiOperation(int type, String code, MidiMessage message, int channel, int control, int fromValue, int toValue, int duration, int curve, String fileName, String stateKey, String output) {
+        this.type = type;
+        this.code = code;
+        this.message = message;
+        this.channel = channel;
+        this.control = control;
+        this.fromValue = fromValue;
+        this.toValue = toValue;
+        this.duration = duration;
+        this.curve = curve;
+        this.fileName = fileName;
+        this.stateKey = stateKey;
+        this.output = output;
+    }
+
+    public static MidiOperation message(String code, MidiMessage message) {
+        return new MidiOperation(Message, code, message, 0, 0, 0, 0, 0, RampEngine.Linear, null, null, "");
+    }
+
+    // Control change from fromValue to toValue over duration ms, channel is zero based
+    public static MidiOperation ramp(String code, int channel, int control, int fromValue, int toValue, int duration) {
+        return ramp(code, channel, control, fromValue, toValue, duration, RampEngine.Linear);
+    }
+
+    // Control change ramp with a linear or exponential curve
+    public static MidiOperation ramp(String code, int channel, int control, int fromValue, int toValue, int duration, int curve) {
+        return new MidiOperation(Ramp, code, null, channel, control, fromValue, toValue, duration, curve, null, null, "");
+    }
+
+    public static MidiOperation waitFor(String code, int duration) {
+        return new MidiOperation(Wait, code, null, 0, 0, 0, 0, duration, RampEngine.Linear, null, null, "");
+    }
+
+    public static MidiOperation wav(String code, String fileName) {
+        return new MidiOperation(Wav, code, null, 0, 0, 0, 0, 0, RampEngine.Linear, fileName, null, "");
+    }
+
+    // The same operation, setting the given part of the device state
+    public MidiOperation keyed(String stateKey) {
+        return new MidiOperation(type, code, message, channel, control, fromValue, toValue, duration, curve, fileName, stateKey, output);
+    }
+
+    // The same operation, sent to the midi device with the given alias
+    public MidiOperation routed(String output) {
+        return new MidiOperation(type, code, message, channel, control, fromValue, toValue, duration, curve, fileName, stateKey, output);
+    }
+
+    // The message that leaves the device in the same state: the end value for a ramp, the operation itself otherwise
+    public MidiOperation finalMessage() {
+        if (type != Ramp) {
+            return this;
+        }
+        try {
+            return new MidiOperation(Message, code, new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, control, toValue), 0, 0, 0, 0, 0, RampEngine.Linear, null, stateKey, output);
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalStateException("Bad ramp " + code, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return code;
+    }
+}
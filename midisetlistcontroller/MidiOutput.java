@@ -0,0 +1,331 @@
+package midisetlistcontroller;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+
+/**
+ * Sends the compiled plans to one midi device on its own thread, in the order
+ * they were queued. Every configured device has its own output, so a slow
+ * device doesn't hold up the others. Navigation only queues a plan and returns, so a slow midi
+ * driver or a long item doesn't hold up the user interface or the key presses
+ * after it.
+ *
+ * A plan with waits is a timeline: the output thread waits for the next plan
+ * for as long as the wait lasts. When a next plan arrives first, the rest of
+ * the current plan is sent right away without its waits and samples, and the
+ * next plan starts. Only navigation cancels the current plan: a plan that is
+ * sent on the side, such as a single code or the test tone, is sent right away
+ * next to it, without its waits.
+ *
+ * Control change ramps run in the ramp engine alongside the plans, so a ramp
+ * doesn't hold up the rest of the item and several ramps can run at once. The
+ * next item finishes the running ramps at their end values.
+ *
+ * Send times are scheduled on System.nanoTime rather than on thread wake ups:
+ * a wait ends a fixed time after the previous one, not after the messages
+ * before it were sent. For each message the difference between the target
+ * and the actual send time (the jitter) is recorded.
+ *
+ * @author ejlchappin
+ */
+public class MidiOutput extends Thread {
+
+    //Number of plans that can wait to be sent
+    static final int queueSize = 64;
+
+    MidiSetlistController midicontroller = null;
+    //Name of the device in the midi config and the alias that codes are routed to it by
+    volatile String deviceName = "";
+    volatile String alias = "";
+    volatile MidiDevice device = null;
+    //The device that was opened, which is closed before another selected device is opened
+    private volatile MidiDevice opened = null;
+    //Receiver of the opened device, kept for as long as the device is open
+    private volatile Receiver receiver = null;
+    private final ArrayBlockingQueue<QueuedPlan> queue = new ArrayBlockingQueue<>(queueSize);
+    private final RampEngine ramps;
+
+    //Messages are sent this long before they are due when the device plays them at their time stamp
+    static final long lookahead = 2000000L;
+    //Upper bounds of the jitter histogram in ms, the last bucket is everything above
+    static final double[] jitterBuckets = {0.1, 0.5, 1, 2, 5, 10};
+
+    //Statistics, only written by the output thread and read by the user interface
+    private volatile long plansSent = 0;
+    private volatile long messagesSent = 0;
+    private volatile long totalSendTime = 0;
+    private volatile long maxSendTime = 0;
+    private volatile long lastSendTime = 0;
+    private volatile int maxQueueDepth = 0;
+    private volatile long timestampedMessages = 0;
+    private volatile long totalJitter = 0;
+    private volatile long maxJitter = 0;
+    private final AtomicLongArray jitterCounts = new AtomicLongArray(jitterBuckets.length + 1);
+
+    public MidiOutput(MidiSetlistController m) {
+        this(m, "", "");
+    }
+
+    public MidiOutput(MidiSetlistController m, String deviceName, String alias) {
+        super(alias.equals("") ? "Midi output" : "Midi output " + alias);
+        this.midicontroller = m;
+        this.deviceName = deviceName;
+        this.alias = alias;
+        this.ramps = new RampEngine(this);
+        setDaemon(true);
+    }
+
+    //Opens the selected device, or opens it again, with one receiver for as long as it is open.
+    //Gives false if no device is selected.
+    public boolean open() throws MidiUnavailableException {
+        MidiDevice outputDevice = device;
+        if (outputDevice == null) {
+            return false;
+        }
+        close();
+        opened = outputDevice;
+        outputDevice.open();
+        receiver = outputDevice.getReceiver();
+        return true;
+    }
+
+    //Closes the receiver and the device that was opened, also when another device is selected since
+    public void close() {
+        Receiver oldReceiver = receiver;
+        receiver = null;
+        if (oldReceiver != null) {
+            oldReceiver.close();
+        }
+        MidiDevice oldDevice = opened;
+        opened = null;
+        if (oldDevice != null && oldDevice.isOpen()) {
+            oldDevice.close();
+        }
+    }
+
+    public boolean isOpen() {
+        return receiver != null;
+    }
+
+    //Whether the selected device is still present in the system
+    public boolean isAvailable() {
+        MidiDevice outputDevice = device;
+        if (outputDevice == null) {
+            return deviceName.equals("");
+        }
+        return midicontroller.deviceRegistry.getDevices().containsKey(outputDevice.getDeviceInfo());
+    }
+
+    //Name of the device for messages, with its alias
+    public String getDisplayName() {
+        return alias.equals("") ? deviceName : deviceName + " (" + alias + ")";
+    }
+
+    //Queues a plan to be sent after the plans queued before it, cancelling the current plan if it is navigation.
+    //Gives false if the queue is full.
+    public boolean send(MidiOperation[] plan, boolean cancels) {
+        return queue.offer(new QueuedPlan(plan, cancels));
+    }
+
+    //Number of plans waiting to be sent
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    //Sends the plans. Every message has a target time on the monotonic clock: when its plan arrived, when the
+    //wait before it ended or when the ramp value is due.
+    @Override
+    public void run() {
+        MidiOperation[] plan = null;
+        int position = 0;
+        long due = 0;
+        try {
+            while (!isInterrupted()) {
+                try {
+
+                    //Run the plan up to the next wait. With time stamps, messages go out slightly early.
+                    long now = System.nanoTime();
+                    long sendUntil = getDevicePosition() != -1 ? now + lookahead : now;
+                    while (plan != null && sendUntil >= due) {
+                        if (position == plan.length) {
+                            plansSent++;
+                            plan = null;
+                            break;
+                        }
+                        MidiOperation operation = plan[position++];
+                        if (operation.type == MidiOperation.Wait) {
+                            midicontroller.runOperation(operation);
+                            due += operation.duration * 1000000L;
+                        } else if (operation.type == MidiOperation.Ramp) {
+                            midicontroller.runOperation(operation);
+                            ramps.start(operation, due);
+                        } else if (operation.type == MidiOperation.Message) {
+                            ramps.stop(operation);
+                            sendAt(operation.message, due);
+                        } else {
+                            midicontroller.runOperation(operation);
+                        }
+                    }
+
+                    //Wait for the next ramp values, the end of the wait or the next plan
+                    long next = ramps.tick(sendUntil);
+                    if (plan != null) {
+                        next = Math.min(next, due);
+                    }
+                    QueuedPlan nextPlan;
+                    if (next == Long.MAX_VALUE) {
+                        nextPlan = queue.take();
+                    } else {
+                        nextPlan = queue.poll(next - (sendUntil - now) - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    }
+                    if (nextPlan != null) {
+                        //The plan that was taken was waiting as well
+                        maxQueueDepth = Math.max(maxQueueDepth, queue.size() + 1);
+                    }
+                    if (nextPlan != null && plan != null && !nextPlan.cancels) {
+                        runAlongside(nextPlan.operations);
+                    } else if (nextPlan != null) {
+                        cancel(plan, position);
+                        plan = nextPlan.operations;
+                        position = 0;
+                        due = System.nanoTime();
+                    }
+                } catch (RuntimeException e) {
+                    //A bad operation is skipped, the output goes on with the rest
+                    midicontroller.writeLine("Midi output " + getDisplayName() + " skipped an operation: " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            //Stopped
+        }
+    }
+
+    //Cancelled by the next item: the running ramps jump to their end values, and the rest of the plan, if any, only
+    //brings the device in the state of the item, without waits and samples
+    private void cancel(MidiOperation[] plan, int position) {
+        long now = System.nanoTime();
+        ramps.finish(now);
+        if (plan == null) {
+            return;
+        }
+        for (int i = position; i < plan.length; i++) {
+            MidiOperation operation = plan[i].finalMessage();
+            if (operation.type == MidiOperation.Message) {
+                ramps.stop(operation);
+                sendAt(operation.message, now);
+            }
+        }
+        plansSent++;
+    }
+
+    //Sent on the side while a plan runs: sends the plan right away without its waits, and leaves the current plan
+    private void runAlongside(MidiOperation[] plan) {
+        long now = System.nanoTime();
+        for (MidiOperation operation : plan) {
+            if (operation.type == MidiOperation.Message) {
+                ramps.stop(operation);
+                sendAt(operation.message, now);
+            } else if (operation.type == MidiOperation.Ramp) {
+                midicontroller.runOperation(operation);
+                ramps.start(operation, now);
+            } else if (operation.type != MidiOperation.Wait) {
+                midicontroller.runOperation(operation);
+            }
+        }
+        plansSent++;
+    }
+
+    //Sends a message that is due at target (System.nanoTime). If the device supports time stamps, the message is
+    //stamped with the device time of the target, otherwise it is sent right away. Records the send time and jitter.
+    void sendAt(MidiMessage message, long target) {
+        long start = System.nanoTime();
+        long position = getDevicePosition();
+        long timeStamp = -1;
+        long jitter = start - target;
+        if (position != -1) {
+            timeStamp = position + Math.max(target - start, 0) / 1000;
+            jitter = Math.max(jitter, 0);
+            timestampedMessages++;
+        }
+        sendMidiMessage(message, timeStamp);
+
+        lastSendTime = System.nanoTime() - start;
+        totalSendTime += lastSendTime;
+        maxSendTime = Math.max(maxSendTime, lastSendTime);
+        messagesSent++;
+        totalJitter += Math.abs(jitter);
+        maxJitter = Math.max(maxJitter, Math.abs(jitter));
+        int bucket = 0;
+        while (bucket < jitterBuckets.length && Math.abs(jitter) > jitterBuckets[bucket] * 1000000d) {
+            bucket++;
+        }
+        jitterCounts.incrementAndGet(bucket);
+    }
+
+    //Sends a message to the device, at the time stamp in device microseconds or right away for -1
+    public void sendMidiMessage(MidiMessage message, long timeStamp) {
+        try {
+            receiver.send(message, timeStamp);
+        } catch (Exception e) {
+            if (midicontroller.checkMidiDeviceAvailable) {
+                midicontroller.writeLine("Midi device not selected or opened" + (alias.equals("") ? "" : ": " + getDisplayName()));
+            }
+        }
+    }
+
+    //Gives the time of the device in microseconds, -1 if the device doesn't support time stamps
+    public long getDevicePosition() {
+        MidiDevice outputDevice = device;
+        if (outputDevice == null || !outputDevice.isOpen()) {
+            return -1;
+        }
+        try {
+            return outputDevice.getMicrosecondPosition();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    public String getStatistics() {
+        return "Midi output " + getDisplayName() + ": " + plansSent + " items and " + messagesSent + " messages sent, "
+                + getQueueDepth() + " waiting (at most " + maxQueueDepth + " of " + queueSize + "), "
+                + "send time last " + millis(lastSendTime) + " ms, average " + millis(messagesSent > 0 ? totalSendTime / messagesSent : 0)
+                + " ms, max " + millis(maxSendTime) + " ms" + MidiSetlistController.newline
+                + "Timing: " + timestampedMessages + " messages time stamped, jitter average " + millis(messagesSent > 0 ? totalJitter / messagesSent : 0)
+                + " ms, max " + millis(maxJitter) + " ms, " + getJitterHistogram();
+    }
+
+    //Number of messages per jitter bucket, such as "<0.1 ms: 120"
+    private String getJitterHistogram() {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < jitterCounts.length(); i++) {
+            if (i > 0) {
+                histogram.append(", ");
+            }
+            histogram.append(i < jitterBuckets.length ? "<" + jitterBuckets[i] : ">" + jitterBuckets[jitterBuckets.length - 1]);
+            histogram.append(" ms: ").append(jitterCounts.get(i));
+        }
+        return histogram.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1000000d);
+    }
+
+    //A plan in the queue, and whether it cancels the plan that is running
+    private static class QueuedPlan {
+
+        final MidiOperation[] operations;
+        final boolean cancels;
+
+        QueuedPlan(MidiOperation[] operations, boolean cancels) {
+            this.operations = operations;
+            this.cancels = cancels;
+        }
+    }
+}
@@ -1,28 +1,23 @@
 package midisetlistcontroller;
 
-import java.awt.AWTException;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Desktop;
 import java.awt.Image;
-import java.awt.Robot;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sound.midi.InvalidMidiDataException;
@@ -30,7 +25,6 @@ import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiDevice.Info;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
-import javax.sound.midi.Receiver;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.SysexMessage;
 import javax.sound.midi.Transmitter;
@@ -78,17 +72,34 @@ public class MidiSetlistController extends JFrame
         ActionListener {
 
     MidiSetlistController frame = null;
-    MidiDevice device = null;
-    MidiDevice deviceToListen = null;
+    //Devices to listen to for triggers by the alias of their input, the main midi device by "" if no inputs are configured
+    volatile LinkedHashMap<String, MidiDevice> devicesToListen = new LinkedHashMap<>();
+    //Inputs in the midi config, by name and alias
+    ArrayList<String[]> inputDevices = new ArrayList<>();
     MidiListener listenerThread = null;
-    boolean listenerShouldBeReopened = false;
-    Receiver receiver = null;
-    boolean checkMidiDeviceAvailable = true;
-    HashMap<String, String> midiCodesMap = new HashMap<>();
-    HashMap<String, String> midiCodesOpposits = new HashMap<>();
+    DeviceMonitor deviceMonitor = new DeviceMonitor(this);
+    MidiDeviceRegistry deviceRegistry = new MidiDeviceRegistry();
+    volatile boolean checkMidiDeviceAvailable = true;
+    //The codes of the midi config are replaced as a whole when it is read, and used by the midi threads
+    volatile HashMap<String, String> midiCodesMap = new HashMap<>();
+    volatile HashMap<String, String> midiCodesOpposits = new HashMap<>();
+    volatile PlaceholderIndex midiCodesIndex = new PlaceholderIndex(midiCodesMap, "=");
+    volatile PlaceholderIndex midiCodesOppositsIndex = new PlaceholderIndex(midiCodesOpposits, "=");
+    //Alias of the midi device that a shortcut is sent to, if it is not the main device
+    volatile HashMap<String, String> midiCodesOutputs = new HashMap<>();
+    volatile PlaceholderIndex midiCodesOutputsIndex = new PlaceholderIndex(midiCodesOutputs, "=");
+    volatile HashMap<SysexKey, String> midiCodesBySysex = new HashMap<>();
     ArrayList<MidiTrigger> triggerlist = new ArrayList<>();
-    ArrayList<SetlistItem> setlist = new ArrayList<>();
+    volatile TriggerTable triggerTable = new TriggerTable(triggerlist);
+    //Counts the midi configs read, so a setlist check can tell the config was replaced while it ran
+    volatile int configGeneration = 0;
+    volatile Setlist setlist = new Setlist();
+    FileWatcher fileWatcher = null;
     JTextArea displayArea;
+    //Lines in the display, older lines go to the log file
+    DisplayBuffer displayBuffer = new DisplayBuffer(DisplayBuffer.defaultCapacity, "log.txt");
+    //Shows the lines and the current item from all threads once per frame
+    DisplayPublisher displayPublisher = new DisplayPublisher(this);
     JTextArea displayAreaCurrent;
     final JFileChooser fc = new JFileChooser();
     static final String newline = System.getProperty("line.separator");
@@ -97,12 +108,17 @@ public class MidiSetlistController extends JFrame
     //String setlistFilename = System.getProperty("user.dir") + "/setlist.txt";//default filename
     String configFilename = new File("").getAbsoluteFile().getAbsolutePath() + "/midi.txt";
     String setlistFilename = new File("").getAbsoluteFile().getAbsolutePath() + "/setlist.txt";
-    boolean printMidiReceived = false;
+    volatile boolean printMidiReceived = false;
     int largeFontSize = 32;
     int smallFontSize = 16;
     public String computedPlaceHolder = "=";
     SamplePlayer samplePlayer = new SamplePlayer();
-    boolean isWaiting = true;
+    //Time between the values sent for control change ramps, in ms
+    volatile int rampResolution = 10;
+    //Output of the main midi device, the first one configured
+    MidiOutput midiOutput = new MidiOutput(this);
+    //Outputs of all configured midi devices by alias, the main device by ""
+    volatile LinkedHashMap<String, MidiOutput> outputs = new LinkedHashMap<>();
 
     /**
      * @param args the command line arguments
@@ -262,6 +278,10 @@ public class MidiSetlistController extends JFrame
         menuItem.addActionListener(this);
         menuMidi.add(menuItem);
 
+        menuItem = new JMenuItem("Midi output statistics", KeyEvent.VK_O);
+        menuItem.addActionListener(this);
+        menuMidi.add(menuItem);
+
         menuMidi.addSeparator();
 
         menuItem = new JMenuItem("Send midi code", KeyEvent.VK_C);
@@ -285,6 +305,11 @@ public class MidiSetlistController extends JFrame
         menuItem.addActionListener(this);
         menuSetlist.add(menuItem);
 
+        menuItem = new JMenuItem("Toggle watching setlist and config", KeyEvent.VK_W);
+        menuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+        menuItem.addActionListener(this);
+        menuSetlist.add(menuItem);
+
         menuSetlist.addSeparator();
 
         menuItem = new JMenuItem("Display setlist", KeyEvent.VK_D);
@@ -372,9 +397,26 @@ public class MidiSetlistController extends JFrame
         getContentPane().add(scrollPaneCurrent, BorderLayout.PAGE_END);
 
         //Startup!
+        outputs.put("", midiOutput);
+        midiOutput.start();
+        deviceRegistry.addListener(new MidiDeviceRegistry.Listener() {
+            @Override
+            public void deviceAdded(MidiDevice.Info info) {
+                writeLine("Midi device connected: " + info.getName());
+                inputDeviceChanged(info);
+            }
+
+            @Override
+            public void deviceRemoved(MidiDevice.Info info) {
+                writeLine("Midi device disconnected: " + info.getName());
+                inputDeviceChanged(info);
+            }
+        });
+        deviceRegistry.start();
         writeMenu();
         readMidiConfig();
         openMidiDevice();
+        deviceMonitor.start();
         readSetlist();
         if (setlist.size() > 0) {
             runSetlistItemNumber(0);
@@ -394,6 +436,7 @@ public class MidiSetlistController extends JFrame
                 if (chooseConfigFileDialog()) {
                     readMidiConfig();
                     openMidiDevice();
+                    restartFileWatcher();
                 }
                 break;
             case "Edit midi config":
@@ -427,19 +470,28 @@ public class MidiSetlistController extends JFrame
             case "Toggle midi check while sending":
                 checkMidiDeviceAvailable = !checkMidiDeviceAvailable;
                 break;
+            case "Midi output statistics":
+                for (MidiOutput output : outputs.values()) {
+                    writeLine(output.getStatistics());
+                }
+                break;
             case "Send midi code":
                 sendMidiCodeDialog();
                 break;
             case "Select setlist file":
                 if (chooseSetlistFileDialog()) {
                     readSetlist();
+                    restartFileWatcher();
                 }
                 break;
             case "Edit setlist":
                 editSetlist();
                 break;
             case "Reload setlist":
-                readSetlist();
+                reloadSetlist();
+                break;
+            case "Toggle watching setlist and config":
+                toggleFileWatcher();
                 break;
             case "Display setlist":
                 displaySetlist();
@@ -504,11 +556,7 @@ public class MidiSetlistController extends JFrame
         Action downSilent = new AbstractAction() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                samplePlayer.isPlayingWav = false;
-                isWaiting = false;
-                runSetlistNext();
-                samplePlayer.isPlayingWav = true;
-                isWaiting = true;
+                runSetlistNextSilent();
             }
         };
 
@@ -617,6 +665,13 @@ public class MidiSetlistController extends JFrame
         }
     }
 
+    // Goes to the the next setlist item, without playing samples or waiting
+    public void runSetlistNextSilent() {
+        if (currentSetListIndex < setlist.size() - 1) {
+            runSetlistItemNumber(currentSetListIndex + 1, true);
+        }
+    }
+
     // Goes to the previous setlist item 
     public void runSetlistPrevious() {
         if (currentSetListIndex >= 1) {
@@ -626,37 +681,27 @@ public class MidiSetlistController extends JFrame
 
     // Goes to the beginning of this preset (or the previous preset)
     public void runSetListPreviousPreset() {
-        boolean previousPresetFound = false;
-        int previousPreset = currentSetListIndex;
-        while (!previousPresetFound && previousPreset > 0) {
-            previousPreset--;
-            if (!setlist.get(previousPreset).getPreset().equals("")) {
-                //found next preset
-                previousPresetFound = true;
-            }
-        }
-        if (previousPresetFound == true) {
+        int previousPreset = setlist.presetAtOrBefore(currentSetListIndex - 1);
+        if (previousPreset >= 0) {
             runSetlistItemNumber(previousPreset);
         }
     }
 
     // Goes to the next preset
     public void runSetListNextPreset() {
-        boolean nextPresetFound = false;
-        int nextPreset = currentSetListIndex;
-        while (!nextPresetFound & nextPreset < setlist.size() - 1) {
-            nextPreset++;
-
-            if (!setlist.get(nextPreset).getPreset().equals("")) {
-                //found next preset
-                nextPresetFound = true;
-                runSetlistItemNumber(nextPreset);
-            }
+        int nextPreset = setlist.presetAfter(currentSetListIndex);
+        if (nextPreset >= 0) {
+            runSetlistItemNumber(nextPreset);
         }
     }
 
     // Determine the strategy to go from the current set list index to a particular position and execute that strategy.
     public void runSetlistItemNumber(int goingTo) {
+        runSetlistItemNumber(goingTo, false);
+    }
+
+    // Goes to a particular position, without samples and waits if silent
+    public void runSetlistItemNumber(int goingTo, boolean silent) {
 
         int comingFrom = currentSetListIndex;
 
@@ -664,128 +709,124 @@ public class MidiSetlistController extends JFrame
 
             //Case 1. We are not moving, just reapplying the current setting.
             runCurrentSetlistItem(false);
-        } else if (goingTo > comingFrom) {
-
-            //Case 2. We're moving downwards.
-            //Is there a later preset we can start from?
-            int latestPresetFound = comingFrom + 1;
-            for (int i = latestPresetFound; i <= goingTo; i++) {
-                if (!setlist.get(i).getPreset().equals("")) {
-                    //found later preset at nr i.
-                    latestPresetFound = i;
-                }
-            }
-
-            //Proceed to where we want to go
-            for (int i = latestPresetFound; i <= goingTo; i++) {
-                currentSetListIndex = i;
-                runCurrentSetlistItem(false);
-            }
+        } else if (goingTo == comingFrom + 1) {
 
-        } else if (comingFrom > goingTo) {
+            //Case 2. We're moving one item down, which applies the item.
+            currentSetListIndex = goingTo;
+            runCurrentSetlistItem(false, silent);
+        } else if (goingTo == comingFrom - 1 && setlist.presetAtOrBefore(comingFrom) == setlist.presetAtOrBefore(goingTo)) {
 
-            //Case 3. We're moving upwards.
-            boolean differentPreset = false;
-
-            // Is there a preset change in the meantime (note that goingTo may have a preset, but that means there is NO preset change
-            for (int i = comingFrom; i > goingTo; i--) {
-                if (!setlist.get(i).getPreset().equals("")) {
-                    differentPreset = true;
-                }
-            }
-
-            if (!differentPreset) {
-
-                // Case 3a. We are moving up withing the same preset, which means we reversely apply the changes upwards
-                for (int i = comingFrom; i > goingTo; i--) {
-                    // run the reverse of each one, except for the target.
-                    currentSetListIndex = i;
-                    runCurrentSetlistItem(true);
-                }
-                currentSetListIndex = goingTo;
+            //Case 3. We're moving one item up within the same preset, which reverses the item.
+            runCurrentSetlistItem(true, silent);
+            currentSetListIndex = goingTo;
+        } else {
 
+            //Case 4. We're jumping. The state of the device is derived from the setlist, and only what differs is
+            //sent: within the same preset the changes from the current state, otherwise the preset and the changes
+            //after it. Samples and waits on the way are skipped. Going down, the device is brought to the state
+            //before the target, and the target item itself is run with its samples and waits.
+            MidiOperation[] plan;
+            if (goingTo > comingFrom) {
+                MidiOperation[] item = setlist.get(goingTo).getForwardPlan();
+                MidiOperation[] before = setlist.get(goingTo).getPreset().equals("") ? stateChange(comingFrom, goingTo - 1) : new MidiOperation[0];
+                plan = new MidiOperation[before.length + item.length];
+                System.arraycopy(before, 0, plan, 0, before.length);
+                System.arraycopy(item, 0, plan, before.length, item.length);
             } else {
-
-                // Case 4b. We are moving to a different preset, which means we should go to the beginning of the preset and go down to where we need to go.
-                boolean presetFound = false;
-                int previousPreset = goingTo;
-                while (!presetFound && previousPreset > 0) {
-                    if (!setlist.get(previousPreset).getPreset().equals("")) {
-                        presetFound = true;
-                    } else {
-                        previousPreset--;
-                    }
-                }
-
-                //We need to go from presetFound up to goingTo.
-                //We disable any samples being played here
-                samplePlayer.isPlayingWav = false;
-                isWaiting = false;
-                for (int i = previousPreset; i <= goingTo; i++) {
-                    currentSetListIndex = i;
-                    runCurrentSetlistItem(false);
-                }
-                samplePlayer.isPlayingWav = true;
-                isWaiting = true;
+                plan = stateChange(comingFrom, goingTo);
             }
+            currentSetListIndex = goingTo;
+            runPlan(plan, silent);
         }
         // Add outcome to the display
         writeLine(currentSetListIndex + ": " + setlist.get(currentSetListIndex).toString());
     }
 
+    //Gives the operations that bring the device from the state after one item to the state after another
+    private MidiOperation[] stateChange(int from, int to) {
+        DeviceState target = DeviceState.of(setlist, to);
+        if (setlist.presetAtOrBefore(from) == setlist.presetAtOrBefore(to)) {
+            return DeviceState.of(setlist, from).diff(target);
+        }
+        return target.operations();
+    }
+
     //Run current set list item
     public void runCurrentSetlistItem(boolean reverseDirection) {
+        runCurrentSetlistItem(reverseDirection, false);
+    }
+
+    //Run current set list item, without samples and waits if silent
+    public void runCurrentSetlistItem(boolean reverseDirection, boolean silent) {
         System.out.println("Loading preset " + currentSetListIndex + ", reverse codes: " + reverseDirection);
-//        if(reverseDirection == false){
-//            writeLine(currentSetListIndex + ": " + setlist.get(currentSetListIndex).toString());
-//        }
         SetlistItem item = setlist.get(currentSetListIndex);
-        String[] midiCodes = item.getMidiCodes();
-        String preset = item.getPreset();
 
-        // Normal direction
+        // The item is compiled when loading, going down runs the preset and the 'to' codes, 
+        // going up runs the 'from' codes or the opposites of the codes.
         if (!reverseDirection) {
+            runPlan(item.getForwardPlan(), silent);
+        } else {
+            runPlan(item.getReversePlan(), silent);
+        }
+    }
 
-            // Send a studio set message if it is needed
-            if (!preset.equals("")) {
-                sendMessage(preset);
-            }
-
-            // Send other midi codes
-            if (midiCodes != null) {
-                for (String s : midiCodes) {
+    //Queues the precompiled operations of a setlist item to be sent in order by the midi output threads, which
+    //cancels the item that is still running. With several midi devices, each device gets its own operations and
+    //all waits, so the devices are sent to at the same time and keep the timing of the item. Every device gets a
+    //plan, also an empty one, so the next item cancels the waits everywhere.
+    public void runPlan(MidiOperation[] plan) {
+        Map<String, MidiOutput> current = outputs;
+        if (current.size() == 1) {
+            runPlan(midiOutput, plan, true);
+            return;
+        }
+        for (Map.Entry<String, MidiOutput> entry : current.entrySet()) {
+            runPlan(entry.getValue(), planForOutput(plan, entry.getKey()), true);
+        }
+    }
 
-                    //Check whether we have a 'from > to'. Now we need the 'to'
-                    String codeTo = s;
-                    if (s.contains(">")) {
-                        codeTo = s.split(">")[1];
-                    }
-                    sendMessage(codeTo);
-                }
+    //Queues operations that are sent on the side, such as a single code or the test tone, without cancelling the
+    //item that is running. Only the devices that the operations are routed to get them.
+    public void sendPlan(MidiOperation[] plan) {
+        for (Map.Entry<String, MidiOutput> entry : outputs.entrySet()) {
+            MidiOperation[] operations = planForOutput(plan, entry.getKey());
+            if (operations.length > 0) {
+                runPlan(entry.getValue(), operations, false);
             }
-        } else {
+        }
+    }
 
-            // Reverse direction, so we reverse the codes!
-            // Do we have codes?
-            if (midiCodes != null) {
+    private void runPlan(MidiOutput output, MidiOperation[] plan, boolean cancels) {
+        if (!output.send(plan, cancels)) {
+            writeLine("Midi output " + output.getDisplayName() + " is behind, " + output.getQueueDepth() + " items waiting. Item not sent.");
+            errorColor();
+        }
+    }
 
-                // For each of the codes
-                for (String s : item.getMidiCodes()) {
+    //Gives the operations of a plan for one midi device: the ones routed to it, the waits, and for the main device
+    //the samples
+    private static MidiOperation[] planForOutput(MidiOperation[] plan, String alias) {
+        ArrayList<MidiOperation> operations = new ArrayList<>(plan.length);
+        for (MidiOperation operation : plan) {
+            if (operation.type == MidiOperation.Wait || (operation.type == MidiOperation.Wav ? alias.equals("") : operation.output.equals(alias))) {
+                operations.add(operation);
+            }
+        }
+        return operations.toArray(new MidiOperation[operations.size()]);
+    }
 
-                    String codeTo = s;
-                    if (s.contains(">")) {
-                        //from>to overrides the defined opposites
-                        codeTo = s.split(">")[0];
-                    } else {
-                        // Do we have an opposite code, compute it.
-                        codeTo = computeOppositeMidiCode(s);
-                        System.out.println("Opposite code for " + s + " is " + codeTo);
-                    }
-                    //Send the code (original if the reverse could not be computed
-                    sendMessage(codeTo);
+    //Queues the operations, leaving out samples and waits if silent
+    public void runPlan(MidiOperation[] plan, boolean silent) {
+        if (silent) {
+            ArrayList<MidiOperation> operations = new ArrayList<>();
+            for (MidiOperation operation : plan) {
+                if (operation.type != MidiOperation.Wav && operation.type != MidiOperation.Wait) {
+                    operations.add(operation);
                 }
             }
+            plan = operations.toArray(new MidiOperation[operations.size()]);
         }
+        runPlan(plan);
     }
 
 //Writes the menu options to the text area
@@ -819,8 +860,12 @@ public class MidiSetlistController extends JFrame
 
     //Reads configuration file for midi device and codes
     public void readMidiConfig() {
-        String deviceName = "";
-        triggerlist = new ArrayList<>();
+        ArrayList<String[]> devices = new ArrayList<>();
+        ArrayList<String[]> inputs = new ArrayList<>();
+        ArrayList<MidiTrigger> triggers = new ArrayList<>();
+        HashMap<String, String> codes = new HashMap<>();
+        HashMap<String, String> opposits = new HashMap<>();
+        HashMap<String, String> codeOutputs = new HashMap<>();
 
         BufferedReader reader = readFile(configFilename);
         String line = "";
@@ -831,10 +876,31 @@ public class MidiSetlistController extends JFrame
                 if (!line.startsWith(";") && !line.isEmpty()) {
                     String[] lineSplit = line.split(",");
                     if (lineSplit[0].equals("Device")) {
-                        deviceName = lineSplit[1];
-                        writeLine("Midi device configured: " + deviceName);
-                        if (device != null) {
-                            writeLine("Midi device currently opened: " + device.getDeviceInfo().getName());
+                        String alias = lineSplit.length > 2 ? lineSplit[2] : "";
+                        devices.add(new String[]{lineSplit[1], alias});
+                        writeLine("Midi device configured: " + lineSplit[1] + (alias.equals("") ? "" : " as " + alias));
+                        if (devices.size() == 1 && midiOutput.device != null) {
+                            writeLine("Midi device currently opened: " + midiOutput.device.getDeviceInfo().getName());
+                        }
+                    } else if (lineSplit[0].equals("DisplayLines")) {
+                        int displayLines = lineSplit.length > 1 ? intValue(lineSplit[1]) : 0;
+                        if (displayLines >= 10 && displayLines <= 100000) {
+                            removeDisplayStart(displayBuffer.setCapacity(displayLines));
+                            writeLine("Display lines: " + displayLines);
+                        } else {
+                            writeLine("Display lines should be 10 to 100000: " + line);
+                        }
+                    } else if (lineSplit[0].equals("Input")) {
+                        String alias = lineSplit.length > 2 ? lineSplit[2] : lineSplit[1];
+                        inputs.add(new String[]{lineSplit[1], alias});
+                        writeLine("Midi input configured: " + lineSplit[1] + (alias.equals(lineSplit[1]) ? "" : " as " + alias));
+                    } else if (lineSplit[0].equals("RampResolution")) {
+                        int resolution = lineSplit.length > 1 ? intValue(lineSplit[1]) : 0;
+                        if (resolution >= 1 && resolution <= 1000) {
+                            rampResolution = resolution;
+                            writeLine("Ramp resolution: " + resolution + " ms");
+                        } else {
+                            writeLine("Ramp resolution should be 1 to 1000 ms: " + line);
                         }
                     } else if (lineSplit[0].equals("Trigger")) {
 
@@ -848,6 +914,7 @@ public class MidiSetlistController extends JFrame
                         int triggerValue = 0;
                         String sysexCode = "";
                         String midiCode = "";
+                        String input = lineSplit.length > 4 ? lineSplit[4] : "";
 
                         switch (triggerMessageType) {
                             case "CC":
@@ -855,32 +922,41 @@ public class MidiSetlistController extends JFrame
                                 if (triggerMessageContent.length > 1) {
                                     triggerChannel = intValue(triggerMessageContent[0]);
                                     triggerControl = intValue(triggerMessageContent[1]);
-                                } else if (triggerMessageContent.length > 2) {
-                                    triggerValue = intValue(triggerMessageContent[2]);
+                                    if (triggerMessageContent.length > 2) {
+                                        triggerValue = intValue(triggerMessageContent[2]);
+                                    }
+                                    error = triggerChannel < 1 || triggerChannel > 16 || triggerControl < 0 || triggerControl > 127 || triggerValue < 0 || triggerValue > 127;
                                 } else {
                                     error = true;
                                 }
                                 break;
                             case "SE":
-                                sysexCode = triggerMessageContent[0];
+                                sysexCode = lineSplit[3];
                                 break;
                             case "MC":
-                                midiCode = triggerMessageContent[0];
+                                midiCode = lineSplit[3];
                                 break;
                         }
 
                         if (!error) {
-                            MidiTrigger trigger = new MidiTrigger(key, triggerMessageType, triggerChannel, triggerControl, triggerValue, sysexCode, midiCode);
-                            triggerlist.add(trigger);
-                            writeLine(trigger.toString());
+                            MidiTrigger trigger = new MidiTrigger(key, triggerMessageType, triggerChannel, triggerControl, triggerValue, sysexCode, midiCode, input);
+                            if (trigger.action >= 0) {
+                                triggers.add(trigger);
+                                writeLine(trigger.toString());
+                            } else {
+                                writeLine("Unknown trigger key: " + line);
+                            }
                         } else {
                             writeLine("Malformed midi code: " + line);
                         }
                     } else {
                         if (lineSplit.length >= 3) {
-                            midiCodesMap.put(lineSplit[0], lineSplit[2]);
+                            codes.put(lineSplit[0], lineSplit[2]);
                             if (!lineSplit[1].equals("")) {
-                                midiCodesOpposits.put(lineSplit[0], lineSplit[1]);
+                                opposits.put(lineSplit[0], lineSplit[1]);
+                            }
+                            if (lineSplit.length >= 4 && !lineSplit[3].equals("")) {
+                                codeOutputs.put(lineSplit[0], lineSplit[3]);
                             }
                         } else {
                             writeLine("Malformed midi code: " + line);
@@ -891,17 +967,141 @@ public class MidiSetlistController extends JFrame
         } catch (Exception e) {
             writeLine("Midi config error on line: " + line);
         }
-        //Find the midi device
-        selectMidiDevice(deviceName);
+        //Index the codes with a place holder by the text before it and the plain sysex codes by 
+        //their bytes, then replace the previous configuration at once.
+        HashMap<SysexKey, String> codesBySysex = new HashMap<>();
+        for (Map.Entry<String, String> entry : codes.entrySet()) {
+            String value = entry.getValue();
+            if (value.startsWith("F0") && !value.contains(computedPlaceHolder) && isHexString(value)) {
+                codesBySysex.put(new SysexKey(byteStringToByteArrayComputed(value, 0)), entry.getKey());
+            }
+        }
+        configGeneration++;
+        midiCodesIndex = new PlaceholderIndex(codes, computedPlaceHolder);
+        midiCodesOppositsIndex = new PlaceholderIndex(opposits, computedPlaceHolder);
+        midiCodesMap = codes;
+        midiCodesOpposits = opposits;
+        midiCodesBySysex = codesBySysex;
+        configureOutputs(devices);
+        inputDevices = inputs;
+        for (Map.Entry<String, String> entry : codeOutputs.entrySet()) {
+            if (resolveOutput(entry.getValue()) == null) {
+                writeLine("Midi code " + entry.getKey() + " is sent to an unknown midi device: " + entry.getValue());
+            }
+        }
+        midiCodesOutputsIndex = new PlaceholderIndex(codeOutputs, computedPlaceHolder);
+        midiCodesOutputs = codeOutputs;
+        resolveMidiTriggers(triggers);
+        triggerlist = triggers;
+        triggerTable = new TriggerTable(triggers);
+
+        //Codes in the setlist may resolve differently now
+        compileSetlist();
+
+        //Find the midi devices
+        selectMidiDevice(devices.isEmpty() ? "" : devices.get(0)[0]);
+        for (MidiOutput output : outputs.values()) {
+            if (output != midiOutput) {
+                selectMidiDevice(output);
+            }
+        }
+    }
+
+    private boolean isInput(String alias) {
+        for (String[] input : inputDevices) {
+            if (input[1].equals(alias)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Sets up an output for every configured midi device. The first device is the main device, codes are sent to the
+    //others by their alias. Outputs of devices that are configured as before are kept, the others are closed.
+    private void configureOutputs(ArrayList<String[]> devices) {
+        LinkedHashMap<String, MidiOutput> configured = new LinkedHashMap<>();
+        configured.put("", midiOutput);
+        midiOutput.alias = devices.isEmpty() ? "" : devices.get(0)[1];
+        for (int i = 1; i < devices.size(); i++) {
+            String name = devices.get(i)[0];
+            String alias = devices.get(i)[1];
+            if (alias.equals("") || configured.containsKey(alias) || alias.equals(midiOutput.alias)) {
+                writeLine("Midi device needs an alias of its own: " + name);
+                continue;
+            }
+            MidiOutput output = outputs.get(alias);
+            if (output == null || !output.deviceName.equals(name)) {
+                output = new MidiOutput(this, name, alias);
+                output.start();
+            }
+            configured.put(alias, output);
+        }
+        for (MidiOutput output : outputs.values()) {
+            if (!configured.containsValue(output)) {
+                output.close();
+                output.interrupt();
+            }
+        }
+        outputs = configured;
+    }
+
+    //Gives the key of the output for a device alias, "" for the main device, or null if no device has the alias
+    private String resolveOutput(String alias) {
+        if (alias.equals("") || alias.equals(midiOutput.alias)) {
+            return "";
+        }
+        return outputs.containsKey(alias) ? alias : null;
+    }
+
+    //Resolves the system exclusive and midi code triggers to the bytes they match and the codes
+    //triggers send, dropping (and reporting) triggers that can't be resolved with the current codes
+    //or inputs
+    private void resolveMidiTriggers(ArrayList<MidiTrigger> triggers) {
+        for (int i = triggers.size() - 1; i >= 0; i--) {
+            MidiTrigger trigger = triggers.get(i);
+            if (!trigger.input.equals("") && !isInput(trigger.input)) {
+                writeLine("Trigger listens to a midi input that is not configured: " + trigger.input);
+                triggers.remove(i);
+                continue;
+            }
+            if (trigger.action == MidiTrigger.Code) {
+                trigger.operation = compileMidiCode(trigger.code);
+                if (trigger.operation == null) {
+                    writeLine("Trigger sends a midi code that could not be resolved: " + trigger.code);
+                    triggers.remove(i);
+                    continue;
+                }
+            }
+            if (trigger.messageType == MidiTrigger.SystemExclusive) {
+                if (isHexString(trigger.sysexHex)) {
+                    trigger.sysexData = byteStringToByteArrayComputed(trigger.sysexHex, 0);
+                } else {
+                    writeLine("Trigger hexcode is not a valid sysex message: " + trigger.sysexHex);
+                    triggers.remove(i);
+                }
+            } else if (trigger.messageType == MidiTrigger.MidiCode) {
+                MidiOperation operation = compileMidiCode(trigger.midiCode);
+                if (operation != null && operation.message instanceof SysexMessage) {
+                    trigger.sysexData = operation.message.getMessage();
+                } else {
+                    writeLine("Trigger midicode not defined in midi config: " + trigger.midiCode);
+                    triggers.remove(i);
+                }
+            }
+        }
     }
 
     private void selectMidiDeviceDialog() {
 
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
-        Object[] options = new String[infos.length];
-        for (int i = 0; i < infos.length; i++) {
-            options[i] = infos[i].getName();
+        ArrayList<String> names = new ArrayList<>();
+        for (MidiDevice.Info info : deviceRegistry.getDevices().keySet()) {
+            names.add(info.getName());
+        }
+        if (names.isEmpty()) {
+            writeLine("No midi devices found");
+            return;
         }
+        Object[] options = names.toArray(new String[names.size()]);
         String s = (String) JOptionPane.showInputDialog(
                 frame,
                 "Midi devices available",
@@ -987,35 +1187,107 @@ public class MidiSetlistController extends JFrame
         }
     }
 
-    //Read setlist from the selected file
+    //Read setlist from the selected file. Only the lines are indexed, items are parsed when they are used.
+    //If the setlist and midi config didn't change since the setlist was last checked, the compiled
+    //items are taken from the setlist cache instead.
     public void readSetlist() {
-        BufferedReader reader = readFile(setlistFilename);
-        String name = null;
-        try {
-            name = reader.readLine();
-        } catch (Exception e) {
-            writeLine("Reading error in midi config. Formatting: line one: device name, line two: pedal config (channel,cc,value), other lines: shortcut,midicode,opposite shortcut. Problem with line: " + name);
+        Setlist cachedSetlist = SetlistCache.read(setlistFilename, configFilename, this);
+        if (cachedSetlist != null) {
+            setlist = cachedSetlist;
+            writeLine(newline + "Setlist: " + cachedSetlist.getName());
+            return;
+        }
+        Setlist newSetlist = readSetlistFile();
+        if (newSetlist != null) {
+            setlist = newSetlist;
+            startSetlistCheck();
+        }
+    }
+
+    //Reads the setlist file again, keeping the items that didn't change. The current position
+    //is kept on the same song and position in the song.
+    public void reloadSetlist() {
+        Setlist newSetlist = readSetlistFile();
+        if (newSetlist == null) {
+            return;
+        }
+        Setlist oldSetlist = setlist;
+        int[] unchanged = newSetlist.keepUnchangedItems(oldSetlist);
+        int prefix = unchanged[0];
+        int suffix = unchanged[1];
+        if (prefix == newSetlist.size() && prefix == oldSetlist.size()) {
+            writeLine("Setlist unchanged");
+            return;
+        }
+
+        //Stay on the same song and position
+        int index = currentSetListIndex;
+        if (index >= oldSetlist.size() - suffix) {
+            index = index - oldSetlist.size() + newSetlist.size();
+        } else if (index >= prefix && index < oldSetlist.size()) {
+            index = findSetlistItem(newSetlist, oldSetlist, index);
+        }
+        setlist = newSetlist;
+        currentSetListIndex = Math.max(Math.min(index, newSetlist.size() - 1), 0);
+        checkSetlist(newSetlist, prefix, newSetlist.size() - suffix - 1);
+        writeLine("Setlist reloaded, " + (newSetlist.size() - prefix - suffix) + " items changed");
+        if (newSetlist.size() > 0) {
+            writeLine(currentSetListIndex + ": " + newSetlist.get(currentSetListIndex).toString());
+        }
+    }
+
+    //Finds item index of the old setlist in the new one: the same line, or else an item with the same 
+    //song name and position, closest to where it was. Gives index itself if there is none.
+    private int findSetlistItem(Setlist newSetlist, Setlist oldSetlist, int index) {
+        int found = newSetlist.findLine(oldSetlist, index, index);
+        if (found >= 0) {
+            return found;
+        }
+        SetlistItem current = oldSetlist.get(index);
+        for (int distance = 0; distance < Setlist.windowSize / 2; distance++) {
+            for (int i : new int[]{index - distance, index + distance}) {
+                if (i >= 0 && i < newSetlist.size()) {
+                    SetlistItem item = newSetlist.get(i);
+                    if (item.getSongName().equals(current.getSongName()) && item.getPosition().equals(current.getPosition())) {
+                        return i;
+                    }
+                }
+            }
         }
-        writeLine(newline + "Setlist: " + name);
+        return index;
+    }
 
-        setlist = new ArrayList<>();
-        String mostRecentSongName = "";
-        HashMap<String, String> mostRecentMidiCodeLabels = null;
+    //Reads and indexes the setlist file, null if it can't be read
+    private Setlist readSetlistFile() {
         try {
-            while (reader.ready()) {
-                name = reader.readLine();
-                if (!name.startsWith(";") && !name.isEmpty()) {
-                    String[] code = name.split(",");
-                    SetlistItem item = new SetlistItem(code, mostRecentSongName, mostRecentMidiCodeLabels);
-                    mostRecentSongName = item.getSongName();
-                    mostRecentMidiCodeLabels = item.getMidiCodeLabels();
-                    setlist.add(item);
-                }
-            }
-        } catch (Exception e) {
-            writeLine("Reading error in setlist. Formatting should be Songname,Measure,Preset,SoundNames or Songname,Measure,,Midicodes. Problem with line: " + name);
+            Setlist newSetlist = new Setlist(setlistFilename, this);
+            writeLine(newline + "Setlist: " + newSetlist.getName());
+            return newSetlist;
+        } catch (IOException | RuntimeException e) {
+            writeLine("Reading error in setlist: " + setlistFilename);
+            return null;
+        }
+    }
+
+    // Starts or stops reloading the setlist and midi config when they are saved
+    public void toggleFileWatcher() {
+        if (fileWatcher == null) {
+            fileWatcher = new FileWatcher(this);
+            fileWatcher.start();
+            writeLine("Watching " + setlistFilename + " and " + configFilename + " for changes");
+        } else {
+            fileWatcher.interrupt();
+            fileWatcher = null;
+            writeLine("Stopped watching setlist and config for changes");
+        }
+    }
+
+    // Watches the newly selected files, if watching
+    private void restartFileWatcher() {
+        if (fileWatcher != null) {
+            toggleFileWatcher();
+            toggleFileWatcher();
         }
-        checkSetlist();
     }
 
     public void editSetlist() {
@@ -1030,20 +1302,70 @@ public class MidiSetlistController extends JFrame
     //Writes out the setlist
     public void displaySetlist() {
         writeLine("Set list items:");
-        for (SetlistItem item : setlist) {
-            writeLine(item.toString());
+        Setlist list = setlist;
+        for (int i = 0; i < list.size(); i++) {
+            writeLine(list.parse(i).toString());
         }
     }
 
-    //Writes out the setlist
+    //Checks the whole setlist in the background, so the first item can be played right away. If
+    //there are no problems, the compiled setlist is written to the setlist cache. It is not written if the midi
+    //config was read again during the check, as the items may have been compiled with the old codes.
+    private void startSetlistCheck() {
+        final Setlist list = setlist;
+        final int generation = configGeneration;
+        Thread check = new Thread("Setlist check") {
+            @Override
+            public void run() {
+                SetlistCache cache = new SetlistCache(list, configFilename);
+                if (checkSetlist(list, 0, list.size() - 1, cache) == 0 && list == setlist && generation == configGeneration) {
+                    try {
+                        cache.save(setlistFilename);
+                    } catch (IOException e) {
+                        writeLine("Could not write setlist cache: " + SetlistCache.cacheFilename(setlistFilename));
+                    }
+                }
+            }
+        };
+        check.setDaemon(true);
+        check.start();
+    }
+
     //Writes out the setlist
     public void checkSetlist() {
+        checkSetlist(setlist, 0, setlist.size() - 1);
+    }
+
+    //Checks the presets that contain the items from first to last: reports midi codes that
+    //don't resolve and codes that are applied twice. Items are parsed for the check, not kept.
+    public int checkSetlist(Setlist list, int first, int last) {
+        return checkSetlist(list, first, last, null);
+    }
+
+    //Checks the items, adding the compiled items to the cache if there is one. Gives the number of problems.
+    private int checkSetlist(Setlist list, int first, int last, SetlistCache cache) {
+        int problems = 0;
+        first = Math.max(list.presetAtOrBefore(Math.min(first, list.size() - 1)), 0);
+        int nextPreset = list.presetAfter(Math.max(last, first));
+        last = nextPreset >= 0 ? nextPreset - 1 : list.size() - 1;
         ArrayList<String> codes = new ArrayList<>();
 //        writeLine("Checking for inconsistencies in setlist...");
-        for (SetlistItem item : setlist) {
+        for (int index = Math.max(first, 0); index <= last && index < list.size(); index++) {
+            SetlistItem item = list.parse(index);
+            if (!compileSetlistItem(index, item, true)) {
+                problems++;
+            }
+            if (cache != null) {
+                try {
+                    cache.add(item);
+                } catch (IOException e) {
+                    cache = null;
+                    problems++;
+                }
+            }
             if (!item.getPreset().equals("")) {
                 codes = new ArrayList<>();
-            } else {
+            } else if (item.getMidiCodes() != null) {
                 for (String code : item.getMidiCodes()) {
 
                     //if it has an opposite
@@ -1058,87 +1380,192 @@ public class MidiSetlistController extends JFrame
                             codes.add(code);
                         } else if (codes.contains(code) && !codes.contains(oppositeCode)) {
                             writeLine("Inconsistency, midi code " + code + " twice (without reversing) it in setlist item: " + item.toString());
+                            problems++;
                         }
                     }
                 }
             }
         }
 //        writeLine("Inconsistency check completed.");
+        return problems;
     }
 
-    //Finds the midi device     in the system with a name 
+    //Finds the main midi device in the system with a name, and the devices to listen to
     public void selectMidiDevice(String name) {
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
-        boolean found = false;
+        midiOutput.deviceName = name;
+        selectMidiDevice(midiOutput);
+        selectDevicesToListen(name);
+    }
+
+    //Finds the devices of the configured inputs, or the main midi device to listen to if no inputs are configured
+    private void selectDevicesToListen(String name) {
+        LinkedHashMap<String, MidiDevice> found = new LinkedHashMap<>();
+        if (inputDevices.isEmpty()) {
+            MidiDevice listenTo = findMidiDevice(name, false);
+            if (listenTo != null) {
+                found.put("", listenTo);
+            }
+        }
+        for (String[] input : inputDevices) {
+            MidiDevice listenTo = findMidiDevice(input[0], false);
+            if (listenTo != null) {
+                found.put(input[1], listenTo);
+            } else {
+                writeLine("Didn't find the midi input " + input[0]);
+            }
+        }
+        devicesToListen = found;
+    }
 
-        for (int i = 0; i < infos.length; i++) {
-            try {
-                if (infos[i].getName().equals(name)) {
-                    MidiDevice thisDevice = MidiSystem.getMidiDevice(infos[i]);
-                    int r = thisDevice.getMaxReceivers();
-                    int t = thisDevice.getMaxTransmitters();
-                    if (t == 0) {
-                        device = thisDevice;
-                        found = true;
-                    }
-                    if (r == 0) {
-                        deviceToListen = thisDevice;
+    //A configured input was plugged in or removed: the inputs are found again and listened to again
+    private void inputDeviceChanged(final MidiDevice.Info info) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                for (String[] input : inputDevices) {
+                    if (input[0].equals(info.getName())) {
+                        selectDevicesToListen(midiOutput.deviceName);
+                        signalListener(MidiListener.Reopen);
+                        return;
                     }
                 }
-            } catch (MidiUnavailableException e) {
-                writeLine("Could not open midi device.");
-                errorColor();
             }
-        }
-        if (found == false) {
-            writeLine("Didn't find the midi device");
+        });
+    }
+
+    //Finds the device of an output by its configured name
+    private void selectMidiDevice(MidiOutput output) {
+        MidiDevice outputDevice = findMidiDevice(output.deviceName, true);
+        if (outputDevice != null) {
+            output.device = outputDevice;
+        } else {
+            if (!deviceRegistry.isScanned()) {
+                writeLine("Midi devices could not be listed in time");
+            }
+            writeLine("Didn't find the midi device " + output.getDisplayName());
             errorColor();
         }
     }
 
-    //Writes a list of the midi devices in the system
+    //Gives the device with this name that can be sent to, or listened to, or null if there is none
+    private MidiDevice findMidiDevice(String name, boolean sending) {
+        MidiDevice found = null;
+        for (Map.Entry<MidiDevice.Info, MidiDevice> entry : deviceRegistry.getDevices().entrySet()) {
+            if (entry.getKey().getName().equals(name)) {
+                MidiDevice thisDevice = entry.getValue();
+                if (sending ? thisDevice.getMaxTransmitters() == 0 : thisDevice.getMaxReceivers() == 0) {
+                    found = thisDevice;
+                }
+            }
+        }
+        return found;
+    }
+
+    //Writes a list of the midi devices in the system, as they were listed last, and lists them again in the
+    //background so devices that were plugged in since are reported right away
     public void listMidiDevices() {
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
-        for (int i = 0; i < infos.length; i++) {
-            Info info = infos[i];
+        Map<MidiDevice.Info, MidiDevice> devices = deviceRegistry.getDevices();
+        deviceRegistry.rescan();
+        if (!deviceRegistry.isScanned()) {
+            writeLine("Midi devices could not be listed in time");
+        }
+        for (Info info : devices.keySet()) {
             writeLine("Device name:" + info.getName() + ", vendor:" + info.getVendor() + ", version:" + info.getVersion() + ", description:" + info.getDescription());
         }
     }
 
-    //Opens the currently selected midi device.
+    //Opens the currently selected midi devices.
     public void openMidiDevice() {
-        if (device != null) {
-            try {
-                device.close();
-                device.open();
-                writeLine("Midi sender is now opened");
-                listenerShouldBeReopened = true;
+        boolean opened = false;
+        for (MidiOutput output : outputs.values()) {
+            opened |= openMidiDevice(output);
+        }
+        if (opened) {
+            signalListener(MidiListener.Reopen);
+        }
+    }
+
+    private boolean openMidiDevice(MidiOutput output) {
+        try {
+            if (output.open()) {
+                writeLine("Midi sender is now opened" + (output == midiOutput ? "" : ": " + output.getDisplayName()));
                 errorResolvedColor();
-            } catch (MidiUnavailableException e) {
-                if (checkMidiDeviceAvailable) {
-                    writeLine("Midi device couldn't be found");
-                    errorColor();
-                }
+                return true;
+            }
+        } catch (MidiUnavailableException e) {
+            if (checkMidiDeviceAvailable) {
+                writeLine("Midi device couldn't be found: " + output.getDisplayName());
+                errorColor();
             }
         }
-
+        return false;
     }
 
-    //Closes the currently selected midi device.
+    //Closes the currently selected midi devices.
     public void closeMidiDevice() {
         writeLine("Closing currently selected device");
-        if (device != null) {
-            if (device.isOpen()) {
-                try {
-                    device.close();
-                    writeLine("Device is now closed");
-                } catch (Exception e) {
-                    writeLine("Error closing midi device");
+        signalListener(MidiListener.Close);
+        for (MidiOutput output : outputs.values()) {
+            try {
+                boolean open = output.device != null && output.device.isOpen();
+                output.close();
+                if (open) {
+                    writeLine("Device is now closed" + (output == midiOutput ? "" : ": " + output.getDisplayName()));
                 }
+            } catch (Exception e) {
+                writeLine("Error closing midi device");
             }
         }
     }
 
+    //Whether the selected output devices are still present in the system
+    public boolean isMidiDeviceAvailable() {
+        for (MidiOutput output : outputs.values()) {
+            if (!output.isAvailable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Finds and opens the configured output devices that disappeared again. The current item is applied again to 
+    //them, since they may have lost their state. Gives whether all devices are back.
+    public boolean reconnectMidiDevice() {
+        boolean reconnected = true;
+        for (Map.Entry<String, MidiOutput> entry : outputs.entrySet()) {
+            MidiOutput output = entry.getValue();
+            if (output.isAvailable()) {
+                continue;
+            }
+            boolean present = false;
+            for (MidiDevice.Info info : deviceRegistry.getDevices().keySet()) {
+                present |= info.getName().equals(output.deviceName);
+            }
+            if (!present) {
+                reconnected = false;
+                continue;
+            }
+            if (output == midiOutput) {
+                selectMidiDevice(output.deviceName);
+            } else {
+                selectMidiDevice(output);
+            }
+            if (!openMidiDevice(output)) {
+                reconnected = false;
+                continue;
+            }
+            if (output == midiOutput) {
+                signalListener(MidiListener.Reopen);
+            }
+            writeLine("Midi device reconnected: " + output.getDisplayName());
+            if (setlist.size() > 0) {
+                runPlan(output, planForOutput(DeviceState.of(setlist, currentSetListIndex).operations(), entry.getKey()), false);
+                writeLine(currentSetListIndex + ": " + setlist.get(currentSetListIndex).toString());
+            }
+        }
+        return reconnected;
+    }
+
     //Sends a test note to the midi device
     public void testSendMessage() {
         ShortMessage myMsg = new ShortMessage();
@@ -1149,14 +1576,8 @@ public class MidiSetlistController extends JFrame
             myMsg.setMessage(ShortMessage.NOTE_ON, 0, 60, 93);
         } catch (InvalidMidiDataException ex) {
         }
-        long timeStamp = -1;
-        try {
-            Receiver rcvr = device.getReceiver();
-            writeLine("Sending test tone");
-            rcvr.send(myMsg, timeStamp);
-        } catch (Exception e) {
-            writeLine("Error in sending test message");
-        }
+        writeLine("Sending test tone");
+        sendPlan(new MidiOperation[]{MidiOperation.message("Test tone", myMsg)});
     }
 
     // Disables or enalbes writing the midi messages received to the screen
@@ -1166,30 +1587,19 @@ public class MidiSetlistController extends JFrame
 
     //Cleares the display area
     private void clearTextArea() {
+        displayPublisher.flush();
+        displayBuffer.clear();
         displayArea.setText("");
     }
 
-    //Cleares the display area
+    //Appends the lines of the display that are not in the log yet to the log
     private void writeLog() {
-        writeToFile("log.txt", displayArea.getText());
-    }
-
-    private void writeToFile(String filename, String text) {
-        BufferedWriter writer = null;
+        displayPublisher.flush();
         try {
-            //System.getProperty("user.dir") + "/" + 
-            writer = new BufferedWriter(new FileWriter(filename));
-            writer.write(text);
-            writeLine("Written to " + filename);
-
+            displayBuffer.writeLog();
+            writeLine("Written to log.txt");
         } catch (IOException e) {
-        } finally {
-            try {
-                if (writer != null) {
-                    writer.close();
-                }
-            } catch (IOException e) {
-            }
+            writeLine("Could not write to log.txt");
         }
     }
 
@@ -1209,11 +1619,16 @@ public class MidiSetlistController extends JFrame
     }
 
     public void errorColor() {
-        displayAreaCurrent.setBackground(Color.RED);
+        displayPublisher.showError(true);
     }
 
     public void errorResolvedColor() {
-        displayAreaCurrent.setBackground(displayArea.getBackground());
+        displayPublisher.showError(false);
+    }
+
+    //Shows the current item in red or in the colors of the display. Only called on the event dispatch thread.
+    void showErrorColor(boolean error) {
+        displayAreaCurrent.setBackground(error ? Color.RED : displayArea.getBackground());
     }
 
     public void increaseLargeFont() {
@@ -1241,138 +1656,231 @@ public class MidiSetlistController extends JFrame
         displayAreaCurrent.setFont(new java.awt.Font("Arial", 0, largeFontSize));
     }
 
+    //Compiles and sends a single midi code
     public void sendMessage(String message) {
-        
         System.out.println("Sending: " + message);
-        String messageBody = computeMidiCode(message);
+        MidiOperation operation = compileMidiCode(message);
+        if (operation != null) {
+            sendPlan(new MidiOperation[]{operation});
+        } else {
+            writeLine("Error 6c: bad midi message: " + message);
+        }
+    }
 
-        // Check whether the midi device is there
-        if (checkMidiDeviceAvailable) {
-            try {
-                MidiSystem.getMidiDevice(device.getDeviceInfo());
-            } catch (Exception e) {
-                writeLine("Midi device seems unavailable, will try to reload. Use CTRL-W to try again or CTRL-U to suppress.");
-                readMidiConfig();
-                openMidiDevice();
-            }
+    //Runs a sample, wait or ramp for the midi output thread. Messages are sent by the midi output itself.
+    public void runOperation(MidiOperation operation) {
+        switch (operation.type) {
+            case MidiOperation.Wav:
+                displayPublisher.showCurrent("WAV...");
+                samplePlayer.playSound(operation.fileName);
+                break;
+            case MidiOperation.Wait:
+                // The midi output waits before sending the rest of the item
+                displayPublisher.showCurrent("WAIT...");
+                break;
+            case MidiOperation.Ramp:
+                // The ramp engine of the midi output sends the values over time
+                displayPublisher.showCurrent("Ramp CC" + (operation.channel + 1) + " control " + operation.control + " from " + operation.fromValue + " to " + operation.toValue);
+                break;
         }
+    }
 
-        if (messageBody.startsWith("WAV")) {
-            displayAreaCurrent.setText("WAV...");
-            String[] messagePieces = messageBody.split("-");
-            String fileName = messagePieces[1];
-            samplePlayer.playSound(fileName);
-        } else if (messageBody.startsWith("WAIT")) {
-            String[] messagePieces = messageBody.split("-");
-            int duration = intValue(messagePieces[1]);
-            System.out.println(Thread.currentThread().getPriority() + " " + Thread.currentThread().getName());
-            displayAreaCurrent.setText("WAIT...");
-            if (isWaiting) {
-                try {
-                    Thread.sleep(duration);
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
+    //The midi codes changed: items are compiled again when they are used, and the check 
+    //reports codes that don't resolve now instead of when navigating.
+    public void compileSetlist() {
+        if (setlist.size() > 0) {
+            setlist.clearWindow();
+            startSetlistCheck();
+        }
+    }
+
+    //Compiles a setlist item into the operations to send going down and going up. Gives whether all codes resolved.
+    public boolean compileSetlistItem(int index, SetlistItem item, boolean report) {
+        boolean resolved = true;
+        ArrayList<MidiOperation> forward = new ArrayList<>();
+        ArrayList<MidiOperation> reverse = new ArrayList<>();
+        String preset = item.getPreset();
+        String[] midiCodes = item.getMidiCodes();
+
+        // Send a studio set message if it is needed
+        if (!preset.equals("")) {
+            resolved &= addCompiledMidiCode(forward, preset, index, report);
+        }
+
+        if (midiCodes != null) {
+            for (String s : midiCodes) {
+
+                //Check whether we have a 'from > to'. Going down we need the 'to', going up the 'from'
+                //which overrides the defined opposites. Otherwise the opposite code is computed.
+                if (s.contains(">")) {
+                    String[] fromTo = s.split(">");
+                    resolved &= addCompiledMidiCode(forward, fromTo[fromTo.length - 1], index, report);
+                    resolved &= addCompiledMidiCode(reverse, fromTo[0], index, report);
+                } else {
+                    resolved &= addCompiledMidiCode(forward, s, index, report);
+                    resolved &= addCompiledMidiCode(reverse, computeOppositeMidiCode(s), index, report);
                 }
             }
-        } else if (messageBody.startsWith("PC") || messageBody.startsWith("CC")) {
-            String[] messagePieces = messageBody.split("-");
-            int channel = intValue(messagePieces[1]) - 1;
-            int control = intValue(messagePieces[2]);
-            int value = 0;
-            int endValue = 0;
-            int duration = 0;
-
-            int messageType = 0;
-            if (messageBody.startsWith("PC")) {
-                messageType = ShortMessage.PROGRAM_CHANGE;
-                //there is a from,to. So we select to.
-                if (messagePieces.length >= 4) {
-                    control = intValue(messagePieces[3]);
-                }
+        }
+        // Messages that are overridden within the same step are not sent at all
+        item.setForwardPlan(DeviceState.coalesce(forward.toArray(new MidiOperation[forward.size()])));
+        item.setReversePlan(DeviceState.coalesce(reverse.toArray(new MidiOperation[reverse.size()])));
+        return resolved;
+    }
+
+    private boolean addCompiledMidiCode(ArrayList<MidiOperation> plan, String code, int index, boolean report) {
+        MidiOperation operation = compileMidiCode(code);
+        if (operation != null) {
+            plan.add(operation);
+            return true;
+        } else if (report) {
+            writeLine("Midi code " + code + " could not be resolved in setlist item " + index);
+        }
+        return false;
+    }
+
+    //Turns a midi code into a ready-to-send operation, null if the code doesn't resolve to a valid message
+    public MidiOperation compileMidiCode(String code) {
+        //The code is sent to the device after the @, or to the device configured for the shortcut
+        String base = code;
+        String output;
+        int at = code.indexOf('@');
+        if (at >= 0) {
+            base = code.substring(0, at);
+            output = resolveOutput(code.substring(at + 1));
+        } else {
+            output = midiCodesOutputs.get(code);
+            if (output == null) {
+                output = midiCodesOutputsIndex.get(code, lastNonNumeric(code) + 1);
             }
-            if (messageBody.startsWith("CC")) {
-                messageType = ShortMessage.CONTROL_CHANGE;
+            output = resolveOutput(output != null ? output : "");
+        }
+        if (output == null) {
+            return null;
+        }
 
-                value = intValue(messagePieces[3]);
-                if (messagePieces.length == 5) {
-                    value = intValue(messagePieces[4]);
-                }
-                if (messagePieces.length >= 6) {
-                    value = intValue(messagePieces[3]);
-                    endValue = intValue(messagePieces[4]);
-                    duration = intValue(messagePieces[5]);
-                }
+        MidiOperation operation = compileMidiOperation(base);
+        if (operation == null) {
+            return null;
+        }
+        String key = stateKey(base, operation);
+        if (key != null && !output.equals("")) {
+            key = key + "@" + output;
+        }
+        return operation.keyed(key).routed(output);
+    }
+
+    //Gives the part of the device state an operation sets, so later operations on the same part replace it:
+    //the controller or program of a channel, a code together with its opposite, or for codes with a place 
+    //holder and no opposite of their own, the code before the digits. Null for waits and samples.
+    private String stateKey(String code, MidiOperation operation) {
+        if (operation.type == MidiOperation.Wait || operation.type == MidiOperation.Wav) {
+            return null;
+        }
+        if (operation.type == MidiOperation.Ramp) {
+            return "CC-" + (operation.channel + 1) + "-" + operation.control;
+        }
+        if (operation.message instanceof ShortMessage) {
+            ShortMessage message = (ShortMessage) operation.message;
+            if (message.getCommand() == ShortMessage.CONTROL_CHANGE) {
+                return "CC-" + (message.getChannel() + 1) + "-" + message.getData1();
+            }
+            if (message.getCommand() == ShortMessage.PROGRAM_CHANGE) {
+                return "PC-" + (message.getChannel() + 1);
             }
+        }
 
-            if (duration > 0) {
-                long startTime = System.currentTimeMillis();
-                double elapsedTime = 0d;
-                int oldValue = -1000;
-                while (elapsedTime < duration) {
+        String opposite = midiCodesOpposits.get(code);
+        if (opposite == null && !midiCodesMap.containsKey(code)) {
+            int digitsStart = lastNonNumeric(code) + 1;
+            String prefix = code.substring(0, digitsStart);
+            String oppositeCode = midiCodesOppositsIndex.get(code, digitsStart);
+            if (oppositeCode != null && oppositeCode.contains(computedPlaceHolder)) {
+                //Such as +2 and -2: the digits select what is switched
+                opposite = oppositeCode.replace(computedPlaceHolder, code.substring(digitsStart));
+            } else if (midiCodesIndex.get(code, digitsStart) != null) {
+                //Such as l01:50, or p2 which goes back to p16: the digits are the value
+                return prefix + computedPlaceHolder;
+            }
+        }
+        if (opposite != null && !opposite.equals(code)) {
+            return code.compareTo(opposite) < 0 ? code + "|" + opposite : opposite + "|" + code;
+        }
+        return code;
+    }
 
-                    elapsedTime = (new Date()).getTime() - startTime;
-                    double fraction = elapsedTime / (double) duration;
-                    if (fraction > 1) {
-                        fraction = 1;
-                    } //cap the fraction.
-                    int currentValue = (int) (value - (value - endValue) * fraction);
+    private MidiOperation compileMidiOperation(String code) {
+        String messageBody = computeMidiCode(code);
+        try {
+            if (messageBody.startsWith("WAV")) {
+                String[] messagePieces = messageBody.split("-");
+                return MidiOperation.wav(code, messagePieces[1]);
+            } else if (messageBody.startsWith("WAIT")) {
+                String[] messagePieces = messageBody.split("-");
+                return MidiOperation.waitFor(code, Integer.parseInt(messagePieces[1]));
+            } else if (messageBody.startsWith("PC") || messageBody.startsWith("CC")) {
+                String[] messagePieces = messageBody.split("-");
+                int channel = Integer.parseInt(messagePieces[1]) - 1;
+                int control = Integer.parseInt(messagePieces[2]);
+                int value = 0;
+                int endValue = 0;
+                int duration = 0;
+                int curve = RampEngine.Linear;
+
+                int messageType;
+                if (messageBody.startsWith("PC")) {
+                    messageType = ShortMessage.PROGRAM_CHANGE;
+                    //there is a from,to. So we select to.
+                    if (messagePieces.length >= 4) {
+                        control = Integer.parseInt(messagePieces[3]);
+                    }
+                } else {
+                    messageType = ShortMessage.CONTROL_CHANGE;
 
-                    if (currentValue != oldValue) {
-                        displayAreaCurrent.setText("Sending CC" + channel + " control " + control + " value " + currentValue);
-                        sendShortMessage(messageType, channel, control, currentValue, messageBody);
-                        oldValue = currentValue;
+                    value = Integer.parseInt(messagePieces[3]);
+                    if (messagePieces.length == 5) {
+                        value = Integer.parseInt(messagePieces[4]);
+                    }
+                    if (messagePieces.length >= 6) {
+                        value = Integer.parseInt(messagePieces[3]);
+                        endValue = Integer.parseInt(messagePieces[4]);
+                        duration = Integer.parseInt(messagePieces[5]);
                     }
+                    if (messagePieces.length >= 7) {
+                        if (messagePieces[6].equals("EXP")) {
+                            curve = RampEngine.Exponential;
+                        } else if (!messagePieces[6].equals("LIN")) {
+                            return null;
+                        }
+                    }
+                }
+
+                if (duration > 0) {
+                    // Validate both ends of the ramp
+                    new ShortMessage(messageType, channel, control, value);
+                    new ShortMessage(messageType, channel, control, endValue);
+                    return MidiOperation.ramp(code, channel, control, value, endValue, duration, curve);
                 }
+                return MidiOperation.message(code, new ShortMessage(messageType, channel, control, value));
             } else {
-                sendShortMessage(messageType, channel, control, value, messageBody);
-            }
-        } else {
-            SysexMessage sysmsg = new SysexMessage();
-            try {
                 String body = messageBody;
                 int digits = 0;
                 if (messageBody.contains(computedPlaceHolder)) {
-                    digits = intValue(messageBody.split(" ")[0]);
-                    String toRemove = digits + " ";
-                    body = messageBody.replaceFirst(toRemove, "");
+                    int space = messageBody.indexOf(' ');
+                    digits = Integer.parseInt(messageBody.substring(0, space));
+                    body = messageBody.substring(space + 1);
                 }
-                byte[] messageData = byteStringToByteArrayComputed(body, digits);
-                sysmsg.setMessage(messageData, messageData.length);
-            } catch (Exception ex) {
-                writeLine("Error 6c: bad midi message: " + messageBody);
-            }
-            long timeStamp = -1;
-            try {
-                Receiver rcvr = device.getReceiver();
-                rcvr.send(sysmsg, timeStamp);
-            } catch (Exception e) {
-                if (checkMidiDeviceAvailable) {
-                    writeLine("Midi device not selected or opened");
+                if (!isHexString(body)) {
+                    return null;
                 }
+                byte[] messageData = byteStringToByteArrayComputed(body, digits);
+                return MidiOperation.message(code, new SysexMessage(messageData, messageData.length));
             }
+        } catch (InvalidMidiDataException | RuntimeException e) {
+            return null;
         }
     }
 
-    public void sendShortMessage(int messageType, int channel, int control, int value, String messageBody) {
-        ShortMessage myMsg = new ShortMessage();
-
-        try {
-            myMsg.setMessage(messageType, channel, control, value);
-        } catch (InvalidMidiDataException ex) {
-            writeLine("Error making midi message " + myMsg.toString());
-        }
-        long timeStamp = -1;
-        try {
-            Receiver rcvr = device.getReceiver();
-            rcvr.send(myMsg, timeStamp);
-        } catch (Exception e) {
-            if (checkMidiDeviceAvailable) {
-                writeLine("Error in sending PC or CC message: type " + messageType + " channel " + channel + " control " + control + " value " + value);
-            }
-        }
-
-    }
-
     public byte[] byteStringToByteArrayComputed(String s, int digits) {
         String[] stringArray = s.split(" ");
         int len = stringArray.length;
@@ -1404,34 +1912,87 @@ public class MidiSetlistController extends JFrame
         return br;
     }
 
+    //Writes a line to the display and shows the current item again, from any thread
     public void writeLine(String line) {
-        displayArea.append(line + newline);
+        displayPublisher.write(line + newline, true);
+    }
+
+    public void write(String line) {
+        displayPublisher.write(line, false);
+    }
+
+    //Appends text to the display. Only called on the event dispatch thread.
+    void showText(String text) {
+        int dropped = displayBuffer.append(text);
+        displayArea.append(text);
+        removeDisplayStart(dropped);
         displayArea.setCaretPosition(displayArea.getDocument().getLength());
+    }
 
+    //Shows the current item in the list at the bottom of the screen. Only called on the event dispatch thread.
+    void showCurrentItem() {
         if (setlist != null) {
-
-            // update the current item in the list at the bottom of the screen
             if (setlist.size() > currentSetListIndex && currentSetListIndex >= 0) {
                 displayAreaCurrent.setText(currentSetListIndex + ": " + setlist.get(currentSetListIndex).toString());
             }
         }
     }
 
-    public void write(String line) {
-        displayArea.append(line);
-        displayArea.setCaretPosition(displayArea.getDocument().getLength());
+    //Removes the lines that the display buffer dropped from the start of the display
+    private void removeDisplayStart(int characters) {
+        if (characters > 0) {
+            displayArea.replaceRange("", 0, Math.min(characters, displayArea.getDocument().getLength()));
+        }
     }
 
-    public void executeMidiTrigger(MidiTrigger trigger) {
-        try {
-            Robot robot = new Robot();
-
-            // Simulate a key press
-            robot.keyPress(trigger.keyEvent);
-            robot.keyRelease(trigger.keyEvent);
+    //Called from the midi receiver: runs the trigger's action on the event dispatch thread, 
+    //like the keys do, but without going through the keyboard or needing the focus
+    public void executeMidiTrigger(final MidiTrigger trigger) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                runMidiTrigger(trigger);
+            }
+        });
+    }
 
-        } catch (AWTException e) {
-            writeLine("Problem with midi trigger");
+    public void runMidiTrigger(MidiTrigger trigger) {
+        switch (trigger.action) {
+            case MidiTrigger.Next:
+                runSetlistNext();
+                break;
+            case MidiTrigger.NextSilent:
+                runSetlistNextSilent();
+                break;
+            case MidiTrigger.Previous:
+                runSetlistPrevious();
+                break;
+            case MidiTrigger.PreviousPreset:
+                runSetListPreviousPreset();
+                break;
+            case MidiTrigger.NextPreset:
+                runSetListNextPreset();
+                break;
+            case MidiTrigger.Start:
+                runSetlistStart();
+                break;
+            case MidiTrigger.End:
+                runSetlistEnd();
+                break;
+            case MidiTrigger.Reapply:
+                runSetlistItemNumber(currentSetListIndex);
+                break;
+            case MidiTrigger.Item:
+                if (trigger.item >= 0 && trigger.item < setlist.size()) {
+                    runSetlistItemNumber(trigger.item);
+                } else {
+                    writeLine("Midi trigger to a setlist item that is not present: " + trigger.item);
+                }
+                break;
+            case MidiTrigger.Code:
+                sendPlan(new MidiOperation[]{trigger.operation});
+                writeLine("Sending " + trigger.code);
+                break;
         }
     }
 
@@ -1471,6 +2032,17 @@ public class MidiSetlistController extends JFrame
         return val;
     }
 
+    //Whether all bytes of a (computed) sysex string are two hex digits
+    public static boolean isHexString(String s) {
+        String digits = "0123456789ABCDEF";
+        for (String t : s.toUpperCase().split(" ")) {
+            if (t.length() < 2 || digits.indexOf(t.charAt(0)) < 0 || digits.indexOf(t.charAt(1)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static String decimalToHex(int d) {
         String digits = "0123456789ABCDEF";
         if (d == 0) {
@@ -1485,141 +2057,127 @@ public class MidiSetlistController extends JFrame
         return hex;
     }
 
-    public static <T, E> T getKeyByValue(Map<T, E> map, E value) {
-        for (Entry<T, E> entry : map.entrySet()) {
-            if (Objects.equals(value, entry.getValue())) {
-                return entry.getKey();
-            }
-        }
-        return null;
-    }
-
-    // Configure the midi receiver
-    public void listenToDevice() {
-
-        // Wait until the display is setup
-        while (displayArea == null) {
-            try {
-                //TODO work with ThreadPoolExecutor from: http://stackoverflow.com/questions/3535754/netbeans-java-new-hint-thread-sleep-called-in-loop
-                // OR check https://ejrh.wordpress.com/2012/07/13/sleeping-in-loops-considered-harmful/
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                writeLine("Waiting");
-            }
-        }
-
-        // Wait until deviceToListen is set
-        if (deviceToListen != null) {
-
-            //Open the listenerdevice. 
-            openDeviceToListen();
-            listenerShouldBeReopened = false;
-
-            //Listener is now enabled. Wait until it needs reopening (after reloading midi config)
-            while (!listenerShouldBeReopened) {
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    writeLine("Listener error 5");
-                }
-            }
-
-            //Device needs to be reopened.
-            deviceToListen.close();
-        } else {
-            // Wait
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                writeLine("Listener error 5");
-            }
+    //Tells the listener thread to open, close or reopen the device to listen to
+    public void signalListener(int signal) {
+        if (listenerThread != null) {
+            listenerThread.signal(signal);
         }
     }
 
-    public void openDeviceToListen() {
-        // Skip if the deviceToListen is not set yet.
-        if (deviceToListen != null) {
+    //Opens the devices to listen to, each with a receiver of its own that looks up the triggers, so a busy input
+    //doesn't hold up the others. Gives the opened devices.
+    public ArrayList<MidiDevice> openDevicesToListen() {
+        ArrayList<MidiDevice> opened = new ArrayList<>();
+        for (Map.Entry<String, MidiDevice> entry : devicesToListen.entrySet()) {
+            MidiDevice listenTo = entry.getValue();
+            String input = entry.getKey().equals("") ? "" : ": " + entry.getKey();
             try {
-                deviceToListen.open();
-                writeLine("Midi listener is opened");
+                listenTo.open();
+                opened.add(listenTo);
+                writeLine("Midi listener is opened" + input);
             } catch (MidiUnavailableException ex) {
-                writeLine("Midi device to listen to couldn't be opened");
+                writeLine("Midi device to listen to couldn't be opened" + input);
+                continue;
             }
-            receiver = new DumpReceiver(System.out, this);
             try {
-                Transmitter t = deviceToListen.getTransmitter();
-                t.setReceiver(receiver);
+                Transmitter t = listenTo.getTransmitter();
+                t.setReceiver(new DumpReceiver(System.out, this, entry.getKey()));
             } catch (MidiUnavailableException e) {
-                writeLine("Error receiver 1");
-
+                writeLine("Error receiver 1" + input);
             }
         }
+        return opened;
     }
 
     private void handleKey(KeyEvent e) {
         //nothing!
     }
 
+    /**
+     * Opens and closes the devices to listen to when it is told to, and
+     * otherwise sleeps until the next signal. It starts by opening the devices,
+     * reopens them right away after the midi config is reloaded, the midi
+     * device is opened again or an input is plugged in or removed, and closes
+     * them with the midi device.
+     */
     public static class MidiListener extends Thread {
 
+        static final int Open = 0;
+        static final int Close = 1;
+        static final int Reopen = 2;
+
         MidiSetlistController midicontroller = null;
+        private final LinkedBlockingQueue<Integer> signals = new LinkedBlockingQueue<>();
+        //The devices that are listened to, only used by this thread
+        private ArrayList<MidiDevice> listening = new ArrayList<>();
 
         public MidiListener(MidiSetlistController m) {
+            super("Midi listener");
             this.midicontroller = m;
+            signals.add(Open);
+        }
+
+        public void signal(int signal) {
+            signals.add(signal);
         }
 
         @Override
         public void run() {
-            while (true) {
-                midicontroller.listenToDevice();
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    midicontroller.displayArea.append("Error listening!");
+            try {
+                while (!isInterrupted()) {
+                    int signal = signals.take();
+                    if (signal == Close || signal == Reopen) {
+                        close();
+                    }
+                    if ((signal == Open || signal == Reopen) && listening.isEmpty()) {
+                        listening = midicontroller.openDevicesToListen();
+                    }
                 }
+            } catch (InterruptedException e) {
+                //Stopped
             }
+            close();
+        }
+
+        private void close() {
+            for (MidiDevice device : listening) {
+                device.close();
+            }
+            listening.clear();
         }
     }
 
     public String computeMidiCode(String code) {
-        if (midiCodesMap.containsKey(code)) {
-            return midiCodesMap.get(code);
+        String midiCode = midiCodesMap.get(code);
+        if (midiCode != null) {
+            return midiCode;
         }
 
-        String text = code.substring(0, lastNonNumeric(code) + 1);
-        String digits = code.substring(lastNonNumeric(code) + 1, code.length());
-
-        for (String s : midiCodesMap.keySet()) {
-            if (s.contains(computedPlaceHolder)) {
-                //get all before the x
-                String s1 = s.split(computedPlaceHolder)[0];
-                if (s1.equals(text)) {
-                    return digits + " " + midiCodesMap.get(s);
-                }
-            }
+        //Look up the code with a place holder for the text before the digits
+        int digitsStart = lastNonNumeric(code) + 1;
+        midiCode = midiCodesIndex.get(code, digitsStart);
+        if (midiCode != null) {
+            return code.substring(digitsStart) + " " + midiCode;
         }
         return code;
     }
 
     public String computeOppositeMidiCode(String code) {
-        if (midiCodesOpposits.containsKey(code)) {
-            //System.out.println("Midi code configured as is: " + code);
-            return midiCodesOpposits.get(code);
+        //The opposite goes to the same midi device
+        int at = code.indexOf('@');
+        if (at >= 0) {
+            return computeOppositeMidiCode(code.substring(0, at)) + code.substring(at);
         }
 
-        String text = code.substring(0, lastNonNumeric(code) + 1);
-        String digits = code.substring(lastNonNumeric(code) + 1, code.length());
-
-        for (String s : midiCodesOpposits.keySet()) {
-            if (s.contains(computedPlaceHolder)) {
+        String oppositeCode = midiCodesOpposits.get(code);
+        if (oppositeCode != null) {
+            return oppositeCode;
+        }
 
-                //get all before the x
-                String s1 = s.split(computedPlaceHolder)[0];
-                if (s1.equals(text)) {
-                    //System.out.println("Opposite code for text " + text + " for code " + code + " is code " + s + " with digits " + digits);
-                    return midiCodesOpposits.get(s).replace(computedPlaceHolder, digits);
-                }
-            }
+        int digitsStart = lastNonNumeric(code) + 1;
+        oppositeCode = midiCodesOppositsIndex.get(code, digitsStart);
+        if (oppositeCode != null) {
+            return oppositeCode.replace(computedPlaceHolder, code.substring(digitsStart));
         }
 
         if (code.startsWith("CC")) {
@@ -1648,13 +2206,13 @@ public class MidiSetlistController extends JFrame
             return "WAIT-0";
         }
 
-        System.out.println("No opposite code for " + code);
+        //Without an opposite, going up sends the code again
         return code;
     }
 
     public static final int lastNonNumeric(String s) {
         for (int i = s.length() - 1; i >= 0; i--) {
-            Character c = s.charAt(i);
+            char c = s.charAt(i);
             if (!Character.isDigit(c)) {
                 return i;
             }
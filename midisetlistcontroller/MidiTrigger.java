@@ -4,7 +4,6 @@
  */
 package midisetlistcontroller;
 
-import java.awt.event.KeyEvent;
 import javax.sound.midi.ShortMessage;
 
 /**
@@ -13,7 +12,10 @@ import javax.sound.midi.ShortMessage;
  */
 public class MidiTrigger {
 
-    int keyEvent;
+    int action = -1;
+    int item;
+    String code;
+    MidiOperation operation;
     String key;
     int messageType;
     int channel;
@@ -21,46 +23,72 @@ public class MidiTrigger {
     int value;
     String midiCode;
     String sysexHex; 
+    byte[] sysexData;
     String messageTypeString;
+    //Alias of the midi input the trigger listens to, "" for all inputs
+    String input;
     public static final int SystemExclusive = 0;
     public static final int MidiCode = 1;
+    //Navigation actions, named after the keys that do the same
+    public static final int Next = 0;
+    public static final int NextSilent = 1;
+    public static final int Previous = 2;
+    public static final int PreviousPreset = 3;
+    public static final int NextPreset = 4;
+    public static final int Start = 5;
+    public static final int End = 6;
+    public static final int Reapply = 7;
+    public static final int Item = 8;
+    public static final int Code = 9;
 
-    public MidiTrigger(String key, String messageTypeString, int channel, int control, int value, String sysexMessage, String midiCode) {
+    public MidiTrigger(String key, String messageTypeString, int channel, int control, int value, String sysexMessage, String midiCode, String input) {
 
         this.channel = channel;
         this.control = control;
         this.value = value;
         this.sysexHex = sysexMessage;
         this.midiCode = midiCode;
+        this.input = input;
         
         this.key = key;
         switch (key) {
             case "Space":
-                this.keyEvent = KeyEvent.VK_SPACE;
+                this.action = Next;
                 break;
             case "Down":
-                this.keyEvent = KeyEvent.VK_DOWN;
+            case "Right":
+                this.action = NextSilent;
                 break;
             case "Up":
-                this.keyEvent = KeyEvent.VK_UP;
-                break;
             case "Left":
-                this.keyEvent = KeyEvent.VK_LEFT;
-                break;
-            case "Right":
-                this.keyEvent = KeyEvent.VK_RIGHT;
+                this.action = Previous;
                 break;
             case "Page up":
-                this.keyEvent = KeyEvent.VK_PAGE_UP;
+            case "Pageup":
+                this.action = PreviousPreset;
                 break;
             case "Page down":
-                this.keyEvent = KeyEvent.VK_PAGE_DOWN;
+            case "Pagedown":
+                this.action = NextPreset;
                 break;
             case "Home":
-                this.keyEvent = KeyEvent.VK_HOME;
+                this.action = Start;
                 break;
             case "End":
-                this.keyEvent = KeyEvent.VK_END;
+                this.action = End;
+                break;
+            case "Enter":
+                this.action = Reapply;
+                break;
+            default:
+                //Item-12 goes to setlist item 12, Code-s2 sends midi code s2
+                if (key.startsWith("Item-") && MidiSetlistController.isNumeric(key.substring(5))) {
+                    this.action = Item;
+                    this.item = MidiSetlistController.intValue(key.substring(5));
+                } else if (key.startsWith("Code-") && key.length() > 5) {
+                    this.action = Code;
+                    this.code = key.substring(5);
+                }
                 break;
         }
         switch (messageTypeString) {
@@ -82,6 +110,6 @@ public class MidiTrigger {
     
     @Override
     public String toString(){
-         return "Midi trigger key: " + key + " to type: " + messageTypeString + ", channel: " + channel + ", control: " + control + ", value: " + value + ", midicode: " + midiCode + ", hexcode: " + sysexHex;
+         return "Midi trigger key: " + key + " to type: " + messageTypeString + ", channel: " + channel + ", control: " + control + ", value: " + value + ", midicode: " + midiCode + ", hexcode: " + sysexHex + (input.equals("") ? "" : ", input: " + input);
     }
 }
@@ -0,0 +1,72 @@
+package midisetlistcontroller;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Index of the midi codes that contain the computed place holder (such as s=
+ * or l01:=), keyed on the text before the place holder. Looking up the prefix
+ * of a code like l01:50 walks the characters of the code once and doesn't
+ * allocate, however many codes are configured.
+ *
+ * @author ejlchappin
+ */
+public class PlaceholderIndex {
+
+    private final Node root = new Node();
+
+    private static class Node {
+
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        String value;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node node = child(c);
+            if (node == null) {
+                node = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = node;
+            }
+            return node;
+        }
+    }
+
+    // Indexes all codes in the map that contain the place holder, by the text before it
+    public PlaceholderIndex(Map<String, String> codes, String placeHolder) {
+        for (Map.Entry<String, String> entry : codes.entrySet()) {
+            int position = entry.getKey().indexOf(placeHolder);
+            if (position >= 0) {
+                put(entry.getKey().substring(0, position), entry.getValue());
+            }
+        }
+    }
+
+    private void put(String prefix, String value) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.addChild(prefix.charAt(i));
+        }
+        node.value = value;
+    }
+
+    // Gives the value configured for the first length characters of the code, or null
+    public String get(String code, int length) {
+        Node node = root;
+        for (int i = 0; i < length && node != null; i++) {
+            node = node.child(code.charAt(i));
+        }
+        return node != null ? node.value : null;
+    }
+}
@@ -0,0 +1,149 @@
+package midisetlistcontroller;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Runs the control change ramps for the midi output thread. Values are sent on
+ * a fixed rate schedule at the configured resolution, for any number of ramps
+ * on different channels and controllers at the same time. The shape of a ramp
+ * comes from a precomputed linear or exponential table.
+ *
+ * A later ramp on the same controller takes over from the value the running
+ * ramp has reached, a later message to the controller stops the ramp. Going to
+ * another item finishes the running ramps at their end values.
+ *
+ * @author ejlchappin
+ */
+public class RampEngine {
+
+    public static final int Linear = 0;
+    public static final int Exponential = 1;
+
+    //Number of steps in the curve tables
+    static final int tableSize = 1024;
+    //Steepness of the exponential curve
+    static final double steepness = 4;
+    static final double[][] curves = new double[2][tableSize + 1];
+
+    static {
+        for (int i = 0; i <= tableSize; i++) {
+            double x = i / (double) tableSize;
+            curves[Linear][i] = x;
+            curves[Exponential][i] = (Math.exp(steepness * x) - 1) / (Math.exp(steepness) - 1);
+        }
+    }
+
+    private static class Ramp {
+
+        MidiOperation operation;
+        double fromValue;
+        long start;
+        long duration;
+        int lastValue = -1;
+
+        int valueAt(long now) {
+            //A ramp that starts after the tick that is being sent is still at its start
+            double fraction = Math.max(Math.min((now - start) / (double) duration, 1), 0);
+            double[] curve = curves[operation.curve];
+            return (int) Math.round(fromValue + (operation.toValue - fromValue) * curve[(int) (fraction * tableSize)]);
+        }
+    }
+
+    MidiOutput output = null;
+    //Running ramps by channel and controller
+    private final LinkedHashMap<Integer, Ramp> ramps = new LinkedHashMap<>();
+    private long nextTick = Long.MAX_VALUE;
+
+    public RampEngine(MidiOutput output) {
+        this.output = output;
+    }
+
+    //Starts a ramp, taking over from a running ramp on the same controller
+    public void start(MidiOperation operation, long now) {
+        Ramp ramp = new Ramp();
+        ramp.operation = operation;
+        ramp.fromValue = operation.fromValue;
+        ramp.start = now;
+        ramp.duration = operation.duration * 1000000L;
+        Ramp running = ramps.remove(key(operation.channel, operation.control));
+        if (running != null) {
+            ramp.fromValue = running.valueAt(now);
+        }
+        ramps.put(key(operation.channel, operation.control), ramp);
+        if (nextTick == Long.MAX_VALUE) {
+            nextTick = now;
+        }
+    }
+
+    //Stops the ramp on the controller that this message sets
+    public void stop(MidiOperation operation) {
+        if (operation.message instanceof ShortMessage) {
+            ShortMessage message = (ShortMessage) operation.message;
+            if (message.getCommand() == ShortMessage.CONTROL_CHANGE) {
+                ramps.remove(key(message.getChannel(), message.getData1()));
+            }
+        }
+    }
+
+    //Sends the end value of every running ramp right away and stops them
+    public void finish(long now) {
+        for (Ramp ramp : ramps.values()) {
+            if (ramp.lastValue != ramp.operation.toValue) {
+                try {
+                    output.sendAt(new ShortMessage(ShortMessage.CONTROL_CHANGE, ramp.operation.channel, ramp.operation.control, ramp.operation.toValue), now);
+                } catch (InvalidMidiDataException e) {
+                    //Both ends of the ramp were checked when it was compiled
+                }
+            }
+        }
+        ramps.clear();
+        nextTick = Long.MAX_VALUE;
+    }
+
+    //Sends the values that are due, with the value and time of the tick. Gives the time of the next tick, or
+    //Long.MAX_VALUE if no ramps are running.
+    public long tick(long now) {
+        if (ramps.isEmpty()) {
+            nextTick = Long.MAX_VALUE;
+            return nextTick;
+        }
+        if (now < nextTick) {
+            return nextTick;
+        }
+        long tick = nextTick;
+        Iterator<Ramp> iterator = ramps.values().iterator();
+        while (iterator.hasNext()) {
+            Ramp ramp = iterator.next();
+            int value = ramp.valueAt(tick);
+            if (value != ramp.lastValue) {
+                try {
+                    output.sendAt(new ShortMessage(ShortMessage.CONTROL_CHANGE, ramp.operation.channel, ramp.operation.control, value), tick);
+                } catch (InvalidMidiDataException e) {
+                    //Both ends of the ramp were checked when it was compiled
+                }
+                ramp.lastValue = value;
+            }
+            if (tick - ramp.start >= ramp.duration) {
+                iterator.remove();
+            }
+        }
+
+        //Keep the schedule, unless the thread fell behind
+        long resolution = output.midicontroller.rampResolution * 1000000L;
+        nextTick += resolution;
+        if (nextTick < now) {
+            nextTick = now + resolution;
+        }
+        if (ramps.isEmpty()) {
+            nextTick = Long.MAX_VALUE;
+        }
+        return nextTick;
+    }
+
+    private static int key(int channel, int control) {
+        return channel * 128 + control;
+    }
+}
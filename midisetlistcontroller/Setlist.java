@@ -0,0 +1,281 @@
+package midisetlistcontroller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The setlist, loaded lazily. Loading only indexes where the lines with
+ * setlist items are in the file; SetlistItems are parsed and compiled when
+ * they are used and only a window of recently used items is kept, so startup
+ * time and memory depend on the songs being played rather than on the size of
+ * the whole library.
+ *
+ * The file is read once into a byte buffer, so editing the file on disk
+ * doesn't change the loaded setlist until it is reloaded.
+ *
+ * @author ejlchappin
+ */
+public class Setlist {
+
+    //Number of parsed items that are kept
+    static final int windowSize = 512;
+
+    MidiSetlistController midicontroller = null;
+    String name = "";
+    ByteBuffer content = ByteBuffer.allocate(0);
+    //Size and modification time of the file when its content was read, to recognize the setlist cache by
+    long fileSize = -1;
+    long fileModified = -1;
+    int size = 0;
+    int[] lineStart = new int[0];
+    int[] lineEnd = new int[0];
+    int[] lineHash = new int[0];
+    //Index of the item where the song of each item starts, -1 if there is no song yet
+    int[] songStart = new int[0];
+    //Items that start a preset, in order, so presets are found with a binary search
+    int[] presets = new int[0];
+    int presetCount = 0;
+    //Compiled items from the setlist cache, if the setlist was loaded from it
+    ByteBuffer cache = null;
+    int[] recordOffset = new int[0];
+    private final LinkedHashMap<Integer, SetlistItem> window = new LinkedHashMap<Integer, SetlistItem>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, SetlistItem> eldest) {
+            return size() > windowSize;
+        }
+    };
+
+    public Setlist() {
+    }
+
+    // Reads the file and indexes the lines: the first line is the name, lines starting with ; and empty lines are skipped
+    public Setlist(String filename, MidiSetlistController controller) throws IOException {
+        this.midicontroller = controller;
+        File file = new File(filename);
+        fileSize = file.length();
+        fileModified = file.lastModified();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            content = ByteBuffer.allocate((int) channel.size());
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+            }
+            content.flip();
+        }
+
+        int capacity = 64;
+        lineStart = new int[capacity];
+        lineEnd = new int[capacity];
+        lineHash = new int[capacity];
+        songStart = new int[capacity];
+        presets = new int[capacity];
+        int lastSongStart = -1;
+        boolean first = true;
+        int start = 0;
+        int length = content.limit();
+        while (start < length) {
+            int end = start;
+            while (end < length && content.get(end) != '\n') {
+                end++;
+            }
+            int next = end + 1;
+            if (end > start && content.get(end - 1) == '\r') {
+                end--;
+            }
+            if (first) {
+                name = decode(start, end);
+                first = false;
+            } else if (end > start && content.get(start) != ';') {
+                if (size == capacity) {
+                    capacity *= 2;
+                    lineStart = Arrays.copyOf(lineStart, capacity);
+                    lineEnd = Arrays.copyOf(lineEnd, capacity);
+                    lineHash = Arrays.copyOf(lineHash, capacity);
+                    songStart = Arrays.copyOf(songStart, capacity);
+                }
+                if (content.get(start) != ',') {
+                    lastSongStart = size;
+                }
+                lineStart[size] = start;
+                lineEnd[size] = end;
+                lineHash[size] = hash(start, end);
+                songStart[size] = lastSongStart;
+                if (hasPreset(start, end)) {
+                    if (presetCount == presets.length) {
+                        presets = Arrays.copyOf(presets, presetCount * 2);
+                    }
+                    presets[presetCount++] = size;
+                }
+                size++;
+            }
+            start = next;
+        }
+    }
+
+    //Whether the third field of the line, the preset, is filled in
+    private boolean hasPreset(int start, int end) {
+        int commas = 0;
+        for (int i = start; i < end; i++) {
+            if (content.get(i) == ',') {
+                commas++;
+                if (commas == 2) {
+                    return i + 1 < end && content.get(i + 1) != ',';
+                }
+            }
+        }
+        return false;
+    }
+
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = content.get(start + i);
+        }
+        return new String(bytes, Charset.defaultCharset());
+    }
+
+    private int hash(int start, int end) {
+        int h = 1;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + content.get(i);
+        }
+        return h;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //Gives the last item at or before index that starts a preset, or -1 if there is none
+    public int presetAtOrBefore(int index) {
+        int i = Arrays.binarySearch(presets, 0, presetCount, index);
+        if (i >= 0) {
+            return presets[i];
+        }
+        int insertion = -i - 1;
+        return insertion > 0 ? presets[insertion - 1] : -1;
+    }
+
+    //Gives the first item after index that starts a preset, or -1 if there is none
+    public int presetAfter(int index) {
+        int i = Arrays.binarySearch(presets, 0, presetCount, index);
+        int next = i >= 0 ? i + 1 : -i - 1;
+        return next < presetCount ? presets[next] : -1;
+    }
+
+    public String getLine(int index) {
+        return decode(lineStart[index], lineEnd[index]);
+    }
+
+    //Whether line index of this setlist is the same as line otherIndex of the other setlist
+    private boolean sameLine(int index, Setlist other, int otherIndex) {
+        if (index < 0 || otherIndex < 0) {
+            return index == otherIndex;
+        }
+        int length = lineEnd[index] - lineStart[index];
+        if (lineHash[index] != other.lineHash[otherIndex] || length != other.lineEnd[otherIndex] - other.lineStart[otherIndex]) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (content.get(lineStart[index] + i) != other.content.get(other.lineStart[otherIndex] + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Gives the parsed and compiled item, from the window if it was used recently
+    public synchronized SetlistItem get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Setlist item " + index + " of " + size);
+        }
+        SetlistItem item = window.get(index);
+        if (item == null) {
+            if (cache != null) {
+                item = SetlistCache.readItem(cache, recordOffset[index]);
+            } else {
+                item = parse(index);
+                midicontroller.compileSetlistItem(index, item, false);
+            }
+            window.put(index, item);
+        }
+        return item;
+    }
+
+    //Parses an item without keeping or compiling it
+    public SetlistItem parse(int index) {
+        if (cache != null) {
+            return SetlistCache.readItem(cache, recordOffset[index]);
+        }
+        int start = songStart[index];
+        SetlistItem songStartItem = start >= 0 && start != index ? get(start) : null;
+        String[] code = getLine(index).split(",");
+        if (songStartItem == null) {
+            return new SetlistItem(code, "", new HashMap<String, String>());
+        }
+        return new SetlistItem(code, songStartItem.getSongName(), songStartItem.getMidiCodeLabels());
+    }
+
+    //Drops the parsed items, for instance because the midi codes changed. Items compiled into the
+    //setlist cache are dropped as well.
+    public synchronized void clearWindow() {
+        window.clear();
+        cache = null;
+    }
+
+    //Takes over the parsed items of the previously loaded setlist that didn't change. Gives the number of
+    //unchanged lines at the start and at the end.
+    public int[] keepUnchangedItems(Setlist old) {
+        int prefix = 0;
+        while (prefix < size && prefix < old.size && sameLine(prefix, old, prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < size - prefix && suffix < old.size - prefix && sameLine(size - 1 - suffix, old, old.size - 1 - suffix)) {
+            suffix++;
+        }
+
+        //Items after the change stay the same, unless they copy the song name and labels from a line that changed
+        synchronized (old) {
+            for (Map.Entry<Integer, SetlistItem> entry : old.window.entrySet()) {
+                int oldIndex = entry.getKey();
+                int index = -1;
+                if (oldIndex < prefix) {
+                    index = oldIndex;
+                } else if (oldIndex >= old.size - suffix) {
+                    index = oldIndex - old.size + size;
+                }
+                if (index >= 0 && sameLine(songStart[index], old, old.songStart[oldIndex])) {
+                    synchronized (this) {
+                        window.put(index, entry.getValue());
+                    }
+                }
+            }
+        }
+        return new int[]{prefix, suffix};
+    }
+
+    //Gives the item with the same line as line otherIndex of the other setlist closest to index, or -1
+    public int findLine(Setlist other, int otherIndex, int index) {
+        for (int distance = 0; index - distance >= 0 || index + distance < size; distance++) {
+            if (index - distance >= 0 && index - distance < size && sameLine(index - distance, other, otherIndex)) {
+                return index - distance;
+            }
+            if (index + distance < size && index + distance >= 0 && sameLine(index + distance, other, otherIndex)) {
+                return index + distance;
+            }
+        }
+        return -1;
+    }
+}
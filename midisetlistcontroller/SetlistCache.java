@@ -0,0 +1,306 @@
+package midisetlistcontroller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * Binary cache of a compiled setlist, stored next to the setlist file. It
+ * holds the line and preset index of the setlist and every item with its resolved midi
+ * messages (but not the setlist text itself, which the setlist keeps for reloading), and is keyed on the size and
+ * modification time of the setlist and the midi config, and on a checksum of both for when a file was only touched.
+ * When neither file changed, the setlist is loaded from the cache without
+ * parsing, resolving or checking anything. The cache file is memory mapped, so
+ * items are only read from it when they are used.
+ *
+ * A cache is only written for setlists that passed the check, so problems are
+ * reported every time the setlist is loaded from text.
+ *
+ * @author ejlchappin
+ */
+public class SetlistCache {
+
+    static final int magic = 0x4D534C43;
+    static final int version = 7;
+
+    private final Setlist setlist;
+    private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(records);
+    private final int[] recordOffset;
+    private int count = 0;
+    //The midi config that the items are compiled with, null if it couldn't be read
+    private final long configSize;
+    private final long configModified;
+    private byte[] config = null;
+
+    //Collects the compiled items of the setlist, in order, to write them to the cache
+    public SetlistCache(Setlist setlist, String configFilename) {
+        this.setlist = setlist;
+        this.recordOffset = new int[setlist.size];
+        File configFile = new File(configFilename);
+        configSize = configFile.length();
+        configModified = configFile.lastModified();
+        try {
+            config = Files.readAllBytes(configFile.toPath());
+        } catch (IOException e) {
+            //No cache is written
+        }
+    }
+
+    public static String cacheFilename(String setlistFilename) {
+        return setlistFilename + ".cache";
+    }
+
+    //Checksum of the setlist contents and the midi config
+    public static long checksum(ByteBuffer setlistContent, byte[] config) {
+        CRC32 setlistCrc = new CRC32();
+        setlistCrc.update(setlistContent.duplicate());
+        CRC32 configCrc = new CRC32();
+        configCrc.update(config);
+        return (setlistCrc.getValue() << 32) | configCrc.getValue();
+    }
+
+    //Loads the setlist from the cache, null if there is no cache or the setlist or config changed since. When the
+    //size and modification time of both files are the same as when the cache was written, the files are not
+    //compared, otherwise their checksum is.
+    public static Setlist read(String setlistFilename, String configFilename, MidiSetlistController controller) {
+        File cacheFile = new File(cacheFilename(setlistFilename));
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        File setlistFile = new File(setlistFilename);
+        File configFile = new File(configFilename);
+        long setlistSize = setlistFile.length();
+        long setlistModified = setlistFile.lastModified();
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer cache = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (cache.getInt() != magic || cache.getInt() != version) {
+                return null;
+            }
+            long cachedSetlistSize = cache.getLong();
+            long cachedSetlistModified = cache.getLong();
+            long cachedConfigSize = cache.getLong();
+            long cachedConfigModified = cache.getLong();
+            long checksum = cache.getLong();
+            boolean unchanged = cachedSetlistSize == setlistSize && cachedSetlistModified == setlistModified
+                    && cachedConfigSize == configFile.length() && cachedConfigModified == configFile.lastModified();
+            ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(setlistFile.toPath()));
+            unchanged = unchanged && content.limit() == setlistSize && setlistFile.lastModified() == setlistModified;
+            if (!unchanged && checksum != checksum(content, Files.readAllBytes(configFile.toPath()))) {
+                return null;
+            }
+
+            Setlist setlist = new Setlist();
+            setlist.midicontroller = controller;
+            setlist.content = content;
+            setlist.fileSize = setlistSize;
+            setlist.fileModified = setlistModified;
+            setlist.name = readString(cache);
+            setlist.size = cache.getInt();
+            setlist.lineStart = readInts(cache, setlist.size);
+            setlist.lineEnd = readInts(cache, setlist.size);
+            setlist.lineHash = readInts(cache, setlist.size);
+            setlist.songStart = readInts(cache, setlist.size);
+            setlist.recordOffset = readInts(cache, setlist.size);
+            setlist.presetCount = cache.getInt();
+            setlist.presets = readInts(cache, setlist.presetCount);
+            setlist.cache = cache.slice();
+            return setlist;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    //Adds the next compiled item of the setlist
+    public void add(SetlistItem item) throws IOException {
+        recordOffset[count++] = out.size();
+        writeString(out, item.getSongName());
+        writeString(out, item.getPosition());
+        writeString(out, item.getPreset());
+        String[] midiCodes = item.getMidiCodes();
+        out.writeInt(midiCodes == null ? -1 : midiCodes.length);
+        if (midiCodes != null) {
+            for (String code : midiCodes) {
+                writeString(out, code);
+            }
+        }
+        out.writeInt(item.getMidiCodeLabels().size());
+        for (Map.Entry<String, String> label : item.getMidiCodeLabels().entrySet()) {
+            writeString(out, label.getKey());
+            writeString(out, label.getValue());
+        }
+        writePlan(item.getForwardPlan());
+        writePlan(item.getReversePlan());
+    }
+
+    //Writes the cache file, through a temporary file so a half written cache is never read
+    public void save(String setlistFilename) throws IOException {
+        if (count != setlist.size || config == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() + 20 * setlist.size + 64);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(magic);
+        header.writeInt(version);
+        header.writeLong(setlist.fileSize);
+        header.writeLong(setlist.fileModified);
+        header.writeLong(configSize);
+        header.writeLong(configModified);
+        header.writeLong(checksum(setlist.content, config));
+        writeString(header, setlist.name);
+        header.writeInt(setlist.size);
+        for (int[] values : new int[][]{setlist.lineStart, setlist.lineEnd, setlist.lineHash, setlist.songStart, recordOffset}) {
+            for (int i = 0; i < setlist.size; i++) {
+                header.writeInt(values[i]);
+            }
+        }
+        header.writeInt(setlist.presetCount);
+        for (int i = 0; i < setlist.presetCount; i++) {
+            header.writeInt(setlist.presets[i]);
+        }
+        header.flush();
+        records.writeTo(bytes);
+
+        File cacheFile = new File(cacheFilename(setlistFilename));
+        File temporary = new File(cacheFile.getPath() + ".tmp");
+        Files.write(temporary.toPath(), bytes.toByteArray());
+        Files.move(temporary.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeString(DataOutputStream stream, String s) throws IOException {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+
+    private void writePlan(MidiOperation[] plan) throws IOException {
+        out.writeInt(plan.length);
+        for (MidiOperation operation : plan) {
+            out.writeByte(operation.type);
+            writeString(out, operation.code);
+            writeString(out, operation.stateKey);
+            writeString(out, operation.output);
+            switch (operation.type) {
+                case MidiOperation.Message:
+                    byte[] message = operation.message.getMessage();
+                    out.writeInt(message.length);
+                    out.write(message);
+                    break;
+                case MidiOperation.Ramp:
+                    out.writeInt(operation.channel);
+                    out.writeInt(operation.control);
+                    out.writeInt(operation.fromValue);
+                    out.writeInt(operation.toValue);
+                    out.writeInt(operation.duration);
+                    out.writeInt(operation.curve);
+                    break;
+                case MidiOperation.Wait:
+                    out.writeInt(operation.duration);
+                    break;
+                case MidiOperation.Wav:
+                    writeString(out, operation.fileName);
+                    break;
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int size) {
+        int[] values = new int[Math.max(size, 1)];
+        for (int i = 0; i < size; i++) {
+            values[i] = buffer.getInt();
+        }
+        return values;
+    }
+
+    //Reads a compiled item from the records of the cache
+    public static SetlistItem readItem(ByteBuffer cache, int offset) {
+        ByteBuffer buffer = cache.duplicate();
+        buffer.position(offset);
+        SetlistItem item = new SetlistItem();
+        item.setSongName(readString(buffer));
+        item.setPosition(readString(buffer));
+        item.setPreset(readString(buffer));
+        int codes = buffer.getInt();
+        if (codes >= 0) {
+            String[] midiCodes = new String[codes];
+            for (int i = 0; i < codes; i++) {
+                midiCodes[i] = readString(buffer);
+            }
+            item.setMidiCodes(midiCodes);
+        }
+        int labels = buffer.getInt();
+        HashMap<String, String> midiCodeLabels = new HashMap<>();
+        for (int i = 0; i < labels; i++) {
+            midiCodeLabels.put(readString(buffer), readString(buffer));
+        }
+        item.setMidiCodeLabels(midiCodeLabels);
+        item.setForwardPlan(readPlan(buffer));
+        item.setReversePlan(readPlan(buffer));
+        return item;
+    }
+
+    private static MidiOperation[] readPlan(ByteBuffer buffer) {
+        MidiOperation[] plan = new MidiOperation[buffer.getInt()];
+        for (int i = 0; i < plan.length; i++) {
+            int type = buffer.get();
+            String code = readString(buffer);
+            String stateKey = readString(buffer);
+            String output = readString(buffer);
+            switch (type) {
+                case MidiOperation.Message:
+                    byte[] data = new byte[buffer.getInt()];
+                    buffer.get(data);
+                    plan[i] = MidiOperation.message(code, toMidiMessage(data));
+                    break;
+                case MidiOperation.Ramp:
+                    plan[i] = MidiOperation.ramp(code, buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+                    break;
+                case MidiOperation.Wait:
+                    plan[i] = MidiOperation.waitFor(code, buffer.getInt());
+                    break;
+                default:
+                    plan[i] = MidiOperation.wav(code, readString(buffer));
+                    break;
+            }
+            if (!stateKey.equals("")) {
+                plan[i] = plan[i].keyed(stateKey);
+            }
+            if (!output.equals("")) {
+                plan[i] = plan[i].routed(output);
+            }
+        }
+        return plan;
+    }
+
+    private static MidiMessage toMidiMessage(byte[] data) {
+        try {
+            int status = data[0] & 0xFF;
+            if (status == SysexMessage.SYSTEM_EXCLUSIVE || status == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE) {
+                return new SysexMessage(data, data.length);
+            }
+            return new ShortMessage(status, data.length > 1 ? data[1] : 0, data.length > 2 ? data[2] : 0);
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalStateException("Bad midi message in setlist cache", e);
+        }
+    }
+}
@@ -10,10 +10,17 @@ import java.util.HashMap;
 public class SetlistItem {
 
     private String songName;
-    private String position;
-    private int preset;
+    private String position = "";
+    private String preset = "";
     private String[] midiCodes;
     private HashMap<String, String> midiCodeLabels;
+    private MidiOperation[] forwardPlan = new MidiOperation[0];
+    private MidiOperation[] reversePlan = new MidiOperation[0];
+
+    //Empty item, filled from the setlist cache
+    SetlistItem() {
+        this.midiCodeLabels = new HashMap<>();
+    }
 
     SetlistItem(String[] code, String mostRecentSong, HashMap<String, String> mostRecentMidiCodeLabels) {
         this.midiCodeLabels = new HashMap<>();
@@ -23,9 +30,7 @@ public class SetlistItem {
             this.setPosition(code[1]);
         }
         if (code.length > 2) {
-            if (!code[2].equals("")) {
-                this.setPreset(Integer.valueOf(code[2]));
-            }
+            this.setPreset(code[2]);
         }
 
         if (code[0].equals("")) {
@@ -46,11 +51,11 @@ public class SetlistItem {
         }
     }
 
-    public int getPreset() {
+    public String getPreset() {
         return preset;
     }
 
-    public void setPreset(int preset) {
+    public void setPreset(String preset) {
         this.preset = preset;
     }
 
@@ -81,6 +86,24 @@ public class SetlistItem {
     public void SetlistItem(String[] name) {
     }
 
+    //Messages to send when arriving at this item from above
+    public MidiOperation[] getForwardPlan() {
+        return forwardPlan;
+    }
+
+    public void setForwardPlan(MidiOperation[] forwardPlan) {
+        this.forwardPlan = forwardPlan;
+    }
+
+    //Messages to send when leaving this item upwards, undoing its changes
+    public MidiOperation[] getReversePlan() {
+        return reversePlan;
+    }
+
+    public void setReversePlan(MidiOperation[] reversePlan) {
+        this.reversePlan = reversePlan;
+    }
+
     public HashMap<String, String> getMidiCodeLabels() {
         return midiCodeLabels;
     }
@@ -115,8 +138,8 @@ public class SetlistItem {
     }
 
     public String getPresetWritten() {
-        if (getPreset() > 0) {
-            return "\tSet: " + String.valueOf(getPreset());
+        if (!getPreset().equals("")) {
+            return "\tSet: " + getPreset();
         }
         return "";
     }
@@ -0,0 +1,39 @@
+package midisetlistcontroller;
+
+import java.util.Arrays;
+
+/**
+ * Raw system exclusive bytes (including the F0 status byte) usable as a hash
+ * map key, so incoming sysex messages can be looked up on their content.
+ *
+ * @author ejlchappin
+ */
+public class SysexKey {
+
+    private final byte[] data;
+    private final int hash;
+
+    public SysexKey(byte[] data) {
+        this.data = data;
+        this.hash = Arrays.hashCode(data);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SysexKey)) {
+            return false;
+        }
+        SysexKey other = (SysexKey) o;
+        return hash == other.hash && Arrays.equals(data, other.data);
+    }
+
+    @Override
+    public String toString() {
+        return DumpReceiver.getHexString(data);
+    }
+}
@@ -0,0 +1,74 @@
+package midisetlistcontroller;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Dispatch table for the midi triggers. Control change and program change
+ * triggers are indexed by status, channel, data1 and data2, system exclusive
+ * and midi code triggers by the bytes they were resolved to. Matching an
+ * incoming message is a few array lookups or one hash lookup, however many
+ * triggers are configured. The table is built when the midi config is read and
+ * not changed afterwards.
+ *
+ * @author ejlchappin
+ */
+public class TriggerTable {
+
+    //Control changes by channel and controller, then by value
+    private final MidiTrigger[][][] controlChanges = new MidiTrigger[16 * 128][][];
+    //Program changes by channel and program
+    private final MidiTrigger[][] programChanges = new MidiTrigger[16 * 128][];
+    //System exclusive and midi code triggers by their bytes
+    private final HashMap<SysexKey, MidiTrigger[]> systemExclusives = new HashMap<>();
+
+    public TriggerTable(List<MidiTrigger> triggers) {
+        for (MidiTrigger trigger : triggers) {
+            int index = (trigger.channel - 1) * 128 + trigger.control;
+            if (trigger.messageType == ShortMessage.CONTROL_CHANGE) {
+                if (controlChanges[index] == null) {
+                    controlChanges[index] = new MidiTrigger[128][];
+                }
+                controlChanges[index][trigger.value] = add(controlChanges[index][trigger.value], trigger);
+            } else if (trigger.messageType == ShortMessage.PROGRAM_CHANGE) {
+                programChanges[index] = add(programChanges[index], trigger);
+            } else if (trigger.sysexData != null) {
+                SysexKey key = new SysexKey(trigger.sysexData);
+                systemExclusives.put(key, add(systemExclusives.get(key), trigger));
+            }
+        }
+    }
+
+    private static MidiTrigger[] add(MidiTrigger[] triggers, MidiTrigger trigger) {
+        if (triggers == null) {
+            return new MidiTrigger[]{trigger};
+        }
+        triggers = Arrays.copyOf(triggers, triggers.length + 1);
+        triggers[triggers.length - 1] = trigger;
+        return triggers;
+    }
+
+    //Gives the triggers for this message, or null if there are none
+    public MidiTrigger[] match(ShortMessage message) {
+        int index = message.getChannel() * 128 + message.getData1();
+        switch (message.getCommand()) {
+            case ShortMessage.CONTROL_CHANGE:
+                MidiTrigger[][] values = controlChanges[index];
+                return values != null ? values[message.getData2()] : null;
+            case ShortMessage.PROGRAM_CHANGE:
+                return programChanges[index];
+        }
+        return null;
+    }
+
+    public boolean hasSystemExclusives() {
+        return !systemExclusives.isEmpty();
+    }
+
+    //Gives the triggers for these system exclusive bytes, or null if there are none
+    public MidiTrigger[] match(SysexKey message) {
+        return systemExclusives.get(message);
+    }
+}